@@ -0,0 +1,460 @@
+package com.danga.squeezer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+// Process-wide album art cache keyed by artwork_track_id, shared by the
+// Activity and the Service (they run in the same process).
+//
+// Two tiers: a size-bounded LRU of decoded Bitmaps in memory, and the
+// encoded images on disk under the app's cache dir with a byte budget,
+// evicting the least recently used files.  So repeat plays of an album
+// cost neither network nor decoding, and the memory tier survives
+// orientation changes.
+//
+// Covers are decoded no bigger than needed for the target size (the
+// ImageView's): the server is asked for a resized cover_WxH where it
+// supports that, and anything larger is subsampled at decode time, so a
+// cover change costs roughly the displayed size in heap rather than a
+// full-resolution decode.
+public class AlbumArtCache {
+    private static final String TAG = "AlbumArtCache";
+    private static final long MEMORY_BUDGET_BYTES = 2 * 1024 * 1024;
+    private static final long DISK_BUDGET_BYTES = 10 * 1024 * 1024;
+    private static final int DEFAULT_TARGET_SIZE = 320;
+    private static final int RESIZE_FAILURES_TO_GIVE_UP = 3;
+
+    private static AlbumArtCache instance;
+
+    public static synchronized AlbumArtCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new AlbumArtCache(
+                    new File(context.getApplicationContext().getCacheDir(), "albumart"));
+        }
+        return instance;
+    }
+
+    private final File directory;
+
+    // Guarded by this.  Access-ordered, so iteration starts at the LRU entry.
+    private final LinkedHashMap<String, Bitmap> memory =
+        new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    // Guarded by diskLock.  Access-ordered, values are file sizes.
+    private final Object diskLock = new Object();
+    private final LinkedHashMap<String, Long> disk =
+        new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long diskBytes = 0;
+
+    private volatile int targetSize = DEFAULT_TARGET_SIZE;
+
+    // The current connection's web port client, for keep-alive fetches.
+    private volatile HttpConnectionPool httpConnectionPool;
+
+    // Cleared once RESIZE_FAILURES_TO_GIVE_UP resized URLs in a row have
+    // failed where the original worked, i.e. an older server without
+    // cover_WxH support.  A single failure may just be a timeout or one
+    // track's 404.
+    private volatile boolean serverResizes = true;
+    private final AtomicInteger resizeFailures = new AtomicInteger();
+
+    // Decodes are serialized so only one is in flight (bounding peak heap)
+    // and so they can share the decoder's scratch buffer.
+    private final Object decodeLock = new Object();
+    private final byte[] decodeTempStorage = new byte[16 * 1024];
+
+    // Warms the cache ahead of need, off the callers' threads.  Keys being
+    // prefetched are in prefetching so repeated requests don't queue up.
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+    private final ConcurrentHashMap<String, Boolean> prefetching =
+        new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicInteger memoryHits = new AtomicInteger();
+    private final AtomicInteger diskHits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private AlbumArtCache(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+        loadDiskIndex();
+    }
+
+    // The size in pixels of the square covers are displayed in.
+    public void setTargetSize(int pixels) {
+        if (pixels > 0) targetSize = pixels;
+    }
+
+    // Art URLs on the pool's host:port are fetched through it from now
+    // on; anything else (or everything, if pool is null) directly.
+    public void setHttpConnectionPool(HttpConnectionPool pool) {
+        httpConnectionPool = pool;
+    }
+
+    // Never blocks; for the UI thread.  Returns null if not in memory.
+    public Bitmap getFromMemory(String artworkTrackId) {
+        synchronized (this) {
+            Bitmap bitmap = memory.get(artworkTrackId);
+            if (bitmap != null) {
+                memoryHits.incrementAndGet();
+            }
+            return bitmap;
+        }
+    }
+
+    // Blocking: checks memory, then disk, then fetches url.  Call from a
+    // background thread.  Returns null if the image couldn't be had.
+    public Bitmap get(String artworkTrackId, String url) {
+        Bitmap bitmap = getFromMemory(artworkTrackId);
+        if (bitmap != null) return bitmap;
+
+        int size = targetSize;
+        byte[] data = readFromDisk(artworkTrackId, size);
+        if (data != null) {
+            diskHits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            data = fetchArt(url, size);
+            if (data == null) return null;
+            writeToDisk(artworkTrackId, size, data);
+        }
+        bitmap = decode(data);
+        if (bitmap != null) {
+            putInMemory(artworkTrackId, bitmap);
+        }
+        logStats();
+        return bitmap;
+    }
+
+    // Fetches and decodes the art for each artwork_track_id -> URL entry
+    // in the background, so that a later getFromMemory() finds it.  Art
+    // that isn't cached at all is fetched in one pipelined batch where the
+    // web port pool serves it.
+    public void prefetch(Map<String, String> urls) {
+        final LinkedHashMap<String, String> wanted = new LinkedHashMap<String, String>();
+        synchronized (this) {
+            for (Map.Entry<String, String> entry : urls.entrySet()) {
+                if (!memory.containsKey(entry.getKey())) {
+                    wanted.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        Iterator<String> it = wanted.keySet().iterator();
+        while (it.hasNext()) {
+            if (prefetching.putIfAbsent(it.next(), Boolean.TRUE) != null) it.remove();
+        }
+        if (wanted.isEmpty()) return;
+        prefetchExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Log.v(TAG, "Prefetching art for " + wanted.keySet());
+                    Map<String, byte[]> fetched = fetchBatch(wanted);
+                    for (Map.Entry<String, String> entry : wanted.entrySet()) {
+                        byte[] data = fetched.get(entry.getKey());
+                        if (data == null) {
+                            get(entry.getKey(), entry.getValue());
+                            continue;
+                        }
+                        Bitmap bitmap = decode(data);
+                        if (bitmap != null) putInMemory(entry.getKey(), bitmap);
+                    }
+                } finally {
+                    for (String artworkTrackId : wanted.keySet()) {
+                        prefetching.remove(artworkTrackId);
+                    }
+                }
+            }
+        });
+    }
+
+    // For art that can't be cached (no artwork_track_id, e.g. Pandora).
+    public Bitmap getUncached(String url) {
+        byte[] data = fetchArt(url, targetSize);
+        if (data == null) return null;
+        return decode(data);
+    }
+
+    public int getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public int getDiskHits() {
+        return diskHits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    private void logStats() {
+        int memoryHits = this.memoryHits.get();
+        int diskHits = this.diskHits.get();
+        int misses = this.misses.get();
+        int total = memoryHits + diskHits + misses;
+        if (total == 0) return;
+        Log.v(TAG, "hits: memory=" + memoryHits + " disk=" + diskHits + " misses=" + misses
+              + " (" + (100 * (memoryHits + diskHits) / total) + "% hit rate)");
+    }
+
+    private synchronized void putInMemory(String key, Bitmap bitmap) {
+        Bitmap old = memory.put(key, bitmap);
+        if (old != null) memoryBytes -= sizeOf(old);
+        memoryBytes += sizeOf(bitmap);
+        Iterator<Map.Entry<String, Bitmap>> it = memory.entrySet().iterator();
+        while (memoryBytes > MEMORY_BUDGET_BYTES && it.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = it.next();
+            if (eldest.getValue() == bitmap) break;  // always keep the newest
+            memoryBytes -= sizeOf(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private void loadDiskIndex() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        // Oldest first, so the access order starts out as the LRU order.
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        synchronized (diskLock) {
+            for (File file : files) {
+                disk.put(file.getName(), file.length());
+                diskBytes += file.length();
+            }
+        }
+    }
+
+    private byte[] readFromDisk(String artworkTrackId, int size) {
+        String name = fileName(artworkTrackId, size);
+        synchronized (diskLock) {
+            if (disk.get(name) == null) return null;  // also bumps it to MRU
+        }
+        File file = new File(directory, name);
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                byte[] data = readFully(in);
+                file.setLastModified(System.currentTimeMillis());
+                return data;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.v(TAG, "Dropping unreadable cache file " + name + ": " + e);
+            removeFromDisk(name);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String artworkTrackId, int size, byte[] data) {
+        String name = fileName(artworkTrackId, size);
+        File file = new File(directory, name);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.v(TAG, "Couldn't cache " + name + ": " + e);
+            file.delete();
+            return;
+        }
+        synchronized (diskLock) {
+            Long old = disk.put(name, (long) data.length);
+            if (old != null) diskBytes -= old;
+            diskBytes += data.length;
+            Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+            while (diskBytes > DISK_BUDGET_BYTES && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (eldest.getKey().equals(name)) break;
+                diskBytes -= eldest.getValue();
+                new File(directory, eldest.getKey()).delete();
+                it.remove();
+            }
+        }
+    }
+
+    private void removeFromDisk(String name) {
+        synchronized (diskLock) {
+            Long size = disk.remove(name);
+            if (size != null) diskBytes -= size;
+        }
+        new File(directory, name).delete();
+    }
+
+    // Decodes at the largest power-of-two subsampling that still leaves the
+    // image at least targetSize on both sides.  Covers are opaque, so
+    // RGB_565 halves the footprint without visible loss.  (There's no
+    // inBitmap to recycle pixel buffers on this API level; the scratch
+    // buffer is what we can reuse.)
+    private Bitmap decode(byte[] data) {
+        int target = targetSize;
+        synchronized (decodeLock) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inTempStorage = decodeTempStorage;
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+            int sampleSize = 1;
+            while (options.outWidth / (sampleSize * 2) >= target &&
+                   options.outHeight / (sampleSize * 2) >= target) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inDither = true;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    private byte[] fetchArt(String url, int size) {
+        if (!serverResizes) return fetch(url);
+        String resizedUrl = resizedUrl(url, size);
+        if (resizedUrl == null) return fetch(url);
+        byte[] data = fetch(resizedUrl);
+        if (data != null) {
+            resizeFailures.set(0);
+            return data;
+        }
+        data = fetch(url);
+        if (data != null && resizeFailures.incrementAndGet() >= RESIZE_FAILURES_TO_GIVE_UP) {
+            Log.v(TAG, "Server doesn't resize covers; decoding full size from now on");
+            serverResizes = false;
+        }
+        return data;
+    }
+
+    // Fetches whatever of urls isn't on disk yet, pipelining the requests
+    // on one pooled connection, and writes it there.  Returns what it got,
+    // by key; anything missing (no pool, a foreign host, a failed batch, a
+    // 404) is left for get() to fetch singly.
+    private Map<String, byte[]> fetchBatch(Map<String, String> urls) {
+        Map<String, byte[]> fetched = new HashMap<String, byte[]>();
+        HttpConnectionPool pool = httpConnectionPool;
+        if (pool == null || pool.isClosed() || !serverResizes) return fetched;
+        int size = targetSize;
+        List<String> keys = new ArrayList<String>();
+        List<String> fetchUrls = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : urls.entrySet()) {
+            synchronized (diskLock) {
+                if (disk.containsKey(fileName(entry.getKey(), size))) continue;
+            }
+            String resizedUrl = resizedUrl(entry.getValue(), size);
+            if (resizedUrl == null || !pool.serves(resizedUrl)) continue;
+            keys.add(entry.getKey());
+            fetchUrls.add(resizedUrl);
+        }
+        if (fetchUrls.size() < 2) return fetched;
+        List<byte[]> bodies;
+        try {
+            bodies = pool.getAll(fetchUrls);
+        } catch (IOException e) {
+            Log.v(TAG, "Error prefetching " + fetchUrls + ": " + e);
+            return fetched;
+        }
+        for (int i = 0; i < bodies.size(); i++) {
+            if (bodies.get(i) == null) continue;
+            misses.incrementAndGet();
+            writeToDisk(keys.get(i), size, bodies.get(i));
+            fetched.put(keys.get(i), bodies.get(i));
+        }
+        return fetched;
+    }
+
+    // Rewrites .../cover.jpg and .../cover?... to the cover_WxH form, or
+    // returns null if the URL isn't one of ours.
+    private static String resizedUrl(String url, int size) {
+        String resized = "/cover_" + size + "x" + size;
+        if (url.endsWith("/cover.jpg")) {
+            return url.substring(0, url.length() - "/cover.jpg".length()) + resized;
+        }
+        int query = url.indexOf("/cover?");
+        if (query != -1) {
+            return url.substring(0, query) + resized + url.substring(query + "/cover".length());
+        }
+        return null;
+    }
+
+    private byte[] fetch(String url) {
+        HttpConnectionPool pool = httpConnectionPool;
+        if (pool != null && !pool.isClosed() && pool.serves(url)) {
+            try {
+                return pool.get(url);
+            } catch (IOException e) {
+                Log.v(TAG, "Error fetching " + url + ": " + e);
+                return null;
+            }
+        }
+        try {
+            InputStream in = new URL(url).openStream();
+            try {
+                return readFully(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.v(TAG, "Error fetching " + url + ": " + e);
+            return null;
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    // artwork_track_ids are numbers or hex digests, but don't trust them
+    // as file names.  The file holds art fetched for one target size, so
+    // that's part of the name.
+    private static String fileName(String artworkTrackId, int size) {
+        StringBuilder sb = new StringBuilder(artworkTrackId.length() + 10);
+        for (int i = 0; i < artworkTrackId.length(); i++) {
+            char c = artworkTrackId.charAt(i);
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') ||
+                (c >= 'A' && c <= 'Z') || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.append('_').append(size).append(".img").toString();
+    }
+}
@@ -0,0 +1,134 @@
+package com.danga.squeezer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A sliding window over one library listing ("artists", "albums",
+// "titles" or "genres"), which may be 80k+ entries long.  Only the pages
+// covering the visible rows plus a margin either side are kept; the client
+// moves the window as it scrolls, and the pages that come into it are
+// requested from the server with "<category> <start> <PAGE_SIZE>".
+public class BrowseCache {
+    public static final int PAGE_SIZE = 50;
+
+    // Rows kept (and fetched ahead) beyond each side of the visible ones.
+    private static final int MARGIN = PAGE_SIZE;
+
+    private final String category;
+
+    // Guarded by this:
+    private final Map<Integer, Page> pages = new HashMap<Integer, Page>();
+    private final Set<Integer> requested = new HashSet<Integer>();
+    private int firstPage = 0;
+    private int lastPage = -1;
+    private int total = -1;
+
+    private static final class Page {
+        final String[] ids;
+        final String[] names;
+
+        Page(String[] ids, String[] names) {
+            this.ids = ids;
+            this.names = names;
+        }
+    }
+
+    // The CLI command and the key holding each item's display name.
+    private static final String[] CATEGORIES = { "artists", "albums", "titles", "genres" };
+    private static final String[] NAME_KEYS = { "artist", "album", "title", "genre" };
+
+    public static boolean isCategory(String category) {
+        return nameKey(category) != null;
+    }
+
+    // Returns null for an unknown category.
+    public static String nameKey(String category) {
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            if (CATEGORIES[i].equals(category)) return NAME_KEYS[i];
+        }
+        return null;
+    }
+
+    public BrowseCache(String category) {
+        this.category = category;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    // Moves the window to rows [start, start + count), dropping the pages
+    // that fell out of it.  Returns the commands for the pages that need
+    // fetching, in the order they should be sent (visible ones first).
+    public synchronized List<String> setWindow(int start, int count, List<String> commands) {
+        int visibleFirst = Math.max(0, start) / PAGE_SIZE;
+        int visibleLast = Math.max(0, start + count - 1) / PAGE_SIZE;
+        firstPage = Math.max(0, start - MARGIN) / PAGE_SIZE;
+        lastPage = Math.max(0, start + count - 1 + MARGIN) / PAGE_SIZE;
+        if (total >= 0) {
+            int endPage = Math.max(0, total - 1) / PAGE_SIZE;
+            lastPage = Math.min(lastPage, endPage);
+            visibleLast = Math.min(visibleLast, endPage);
+        }
+
+        for (Iterator<Integer> it = pages.keySet().iterator(); it.hasNext();) {
+            if (!inWindow(it.next())) it.remove();
+        }
+        for (Iterator<Integer> it = requested.iterator(); it.hasNext();) {
+            if (!inWindow(it.next())) it.remove();
+        }
+
+        for (int page = visibleFirst; page <= visibleLast; page++) {
+            maybeRequest(page, commands);
+        }
+        for (int page = firstPage; page <= lastPage; page++) {
+            maybeRequest(page, commands);
+        }
+        return commands;
+    }
+
+    // Fills in rows [start, start + count) that are loaded, and empty
+    // strings for the rest.  Returns the total item count, or -1 if no
+    // page has arrived yet.
+    public synchronized int getItems(int start, int count, List<String> ids, List<String> names) {
+        for (int row = start; row < start + count; row++) {
+            Page page = pages.get(row / PAGE_SIZE);
+            int index = row % PAGE_SIZE;
+            if (page != null && index < page.ids.length) {
+                ids.add(page.ids[index]);
+                names.add(page.names[index]);
+            } else {
+                ids.add("");
+                names.add("");
+            }
+        }
+        return total;
+    }
+
+    public synchronized int getTotal() {
+        return total;
+    }
+
+    // Called from the ListeningThread with a parsed reply.  Pages that
+    // scrolled out of the window while in flight are dropped.
+    public synchronized void onPageReceived(int start, String[] ids, String[] names, int total) {
+        this.total = total;
+        int page = start / PAGE_SIZE;
+        requested.remove(page);
+        if (start % PAGE_SIZE != 0 || !inWindow(page)) return;
+        pages.put(page, new Page(ids, names));
+    }
+
+    private boolean inWindow(int page) {
+        return page >= firstPage && page <= lastPage;
+    }
+
+    private void maybeRequest(int page, List<String> commands) {
+        if (pages.containsKey(page) || !requested.add(page)) return;
+        commands.add(category + " " + (page * PAGE_SIZE) + " " + PAGE_SIZE);
+    }
+}
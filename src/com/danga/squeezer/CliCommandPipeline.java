@@ -0,0 +1,290 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Writes CLI commands for one connection.  Commands issued within a short
+// window of each other go out in a single write (one packet instead of one
+// per button press), and each one gets a Future that completes with the
+// server's echoed response line.
+//
+// A line completes the oldest outstanding request whose echo prefix it
+// starts with: the request's tokens up to the first one holding anything
+// but unreserved characters and percent escapes.  The server fills in
+// '?'s and percent-encodes everything else (a ',' comes back as "%2C"),
+// so only the tokens before that are sure to come back as sent.  Every outstanding
+// request is checked, not just the oldest, so one whose reply doesn't
+// echo it can't hold up the rest.  A notification that happens to look
+// identical can complete a request early; callers only use the reply for
+// the data in it, so that's harmless.  Each request that never sees a
+// reply is given up on REPLY_TIMEOUT_MS after it was sent, whether or
+// not anything else arrives.
+public class CliCommandPipeline {
+    private static final String TAG = "CliCommandPipeline";
+    private static final long REPLY_TIMEOUT_MS = 30 * 1000;
+
+    private final ScheduledExecutorService executor;
+    private final long coalesceMillis;
+
+    // Guarded by this:
+    private WritableByteChannel channel;
+    private final List<PendingCommand> unsent = new ArrayList<PendingCommand>();
+    private final LinkedList<PendingCommand> outstanding = new LinkedList<PendingCommand>();
+    private boolean flushScheduled = false;
+    private boolean expiryScheduled = false;
+    private boolean closed = false;
+
+    // Checked without the lock on every incoming line.
+    private volatile boolean hasOutstanding = false;
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable expireRunnable = new Runnable() {
+        public void run() {
+            expire();
+        }
+    };
+
+    public CliCommandPipeline(ScheduledExecutorService executor, long coalesceMillis) {
+        this.executor = executor;
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    // Commands queued before the channel is set are sent once it is.
+    public synchronized void setChannel(WritableByteChannel channel) {
+        this.channel = channel;
+        scheduleFlushLocked();
+    }
+
+    public Future<String> send(String command) {
+        PendingCommand pending = new PendingCommand(command);
+        synchronized (this) {
+            if (closed) {
+                pending.complete(null);
+                return pending;
+            }
+            unsent.add(pending);
+            scheduleFlushLocked();
+        }
+        return pending;
+    }
+
+    // Fails everything in flight.  No further commands are sent.
+    public void close() {
+        List<PendingCommand> dropped = new ArrayList<PendingCommand>();
+        synchronized (this) {
+            closed = true;
+            channel = null;
+            dropped.addAll(unsent);
+            dropped.addAll(outstanding);
+            unsent.clear();
+            outstanding.clear();
+            hasOutstanding = false;
+        }
+        for (PendingCommand pending : dropped) {
+            pending.complete(null);
+        }
+    }
+
+    // Called by the ListeningThread for every line, before it's parsed.
+    public void onLineReceived(byte[] line, int offset, int length) {
+        if (!hasOutstanding) return;
+        PendingCommand completed = null;
+        synchronized (this) {
+            Iterator<PendingCommand> it = outstanding.iterator();
+            while (it.hasNext()) {
+                PendingCommand pending = it.next();
+                if (pending.matches(line, offset, length)) {
+                    completed = pending;
+                    it.remove();
+                    break;
+                }
+            }
+            hasOutstanding = !outstanding.isEmpty();
+        }
+        if (completed != null) {
+            try {
+                completed.complete(new String(line, offset, length, "ISO-8859-1"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // Fails the requests that have waited REPLY_TIMEOUT_MS, and comes back
+    // for the rest when the oldest of them is due.
+    private void expire() {
+        List<PendingCommand> expired = new ArrayList<PendingCommand>();
+        synchronized (this) {
+            expiryScheduled = false;
+            long now = SystemClock.elapsedRealtime();
+            Iterator<PendingCommand> it = outstanding.iterator();
+            while (it.hasNext()) {
+                PendingCommand pending = it.next();
+                if (now - pending.sentAt >= REPLY_TIMEOUT_MS) {
+                    expired.add(pending);
+                    it.remove();
+                }
+            }
+            hasOutstanding = !outstanding.isEmpty();
+            scheduleExpiryLocked();
+        }
+        for (PendingCommand pending : expired) {
+            Log.v(TAG, "No reply to: " + pending.command);
+            pending.complete(null);
+        }
+    }
+
+    private void scheduleExpiryLocked() {
+        if (expiryScheduled || closed || outstanding.isEmpty()) return;
+        expiryScheduled = true;
+        long wait = outstanding.getFirst().sentAt + REPLY_TIMEOUT_MS - SystemClock.elapsedRealtime();
+        executor.schedule(expireRunnable, Math.max(0, wait), TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleFlushLocked() {
+        if (flushScheduled || channel == null || unsent.isEmpty()) return;
+        flushScheduled = true;
+        executor.schedule(flushRunnable, coalesceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        WritableByteChannel channel;
+        List<PendingCommand> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            channel = this.channel;
+            if (channel == null || unsent.isEmpty()) return;
+            batch = new ArrayList<PendingCommand>(unsent);
+            unsent.clear();
+            long now = SystemClock.elapsedRealtime();
+            for (PendingCommand pending : batch) {
+                pending.sentAt = now;
+                outstanding.add(pending);
+            }
+            hasOutstanding = true;
+            scheduleExpiryLocked();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (PendingCommand pending : batch) {
+            Log.v(TAG, "SENDING: " + pending.command);
+            sb.append(pending.command).append('\n');
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes("UTF-8"));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            // The ListeningThread will notice the dead socket and disconnect.
+            Log.v(TAG, "IOException writing commands: " + e);
+        }
+    }
+
+    private static final class PendingCommand implements Future<String> {
+        final String command;
+        final byte[] echoPrefix;
+        long sentAt;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String reply;
+
+        PendingCommand(String command) {
+            this.command = command;
+            this.echoPrefix = echoPrefix(command);
+        }
+
+        boolean matches(byte[] line, int offset, int length) {
+            if (length < echoPrefix.length) return false;
+            for (int i = 0; i < echoPrefix.length; i++) {
+                if (line[offset + i] != echoPrefix[i]) return false;
+            }
+            return length == echoPrefix.length || line[offset + echoPrefix.length] == ' ';
+        }
+
+        void complete(String reply) {
+            this.reply = reply;
+            done.countDown();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        // Returns null if the connection went away or the server never
+        // answered.
+        public String get() throws InterruptedException, ExecutionException {
+            done.await();
+            return reply;
+        }
+
+        public String get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) throw new TimeoutException();
+            return reply;
+        }
+
+        private static byte[] echoPrefix(String command) {
+            int end = 0;
+            int tokenStart = 0;
+            int length = command.length();
+            for (int i = 0; i <= length; i++) {
+                if (i == length || command.charAt(i) == ' ') {
+                    if (!isEchoedVerbatim(command, tokenStart, i)) break;
+                    end = i;
+                    tokenStart = i + 1;
+                }
+            }
+            byte[] prefix = new byte[end];
+            for (int i = 0; i < end; i++) {
+                prefix[i] = (byte) command.charAt(i);
+            }
+            return prefix;
+        }
+
+        // True if the server echoes command[from, to) unchanged: only
+        // unreserved characters and (already made) percent escapes.
+        private static boolean isEchoedVerbatim(String command, int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = command.charAt(i);
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                    (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' ||
+                    c == '~' || c == '%') {
+                    continue;
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+}
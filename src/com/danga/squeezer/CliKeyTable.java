@@ -0,0 +1,124 @@
+package com.danga.squeezer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Perfect-hash table from raw (still percent-encoded) CLI keys to small
+// int ids, so the parser can dispatch each token with one hash and one
+// byte compare instead of a chain of equals() calls.  The id of a key is
+// its index in the constructor's argument list.  Immutable once built,
+// so a single static instance can be shared by all ListeningThreads.
+//
+// Keys can come from the server (player IDs), so a perfect hash isn't
+// guaranteed to be found.  After MAX_SEEDS tries the table falls back to
+// a HashMap, which costs a String per lookup but always works.
+public class CliKeyTable {
+    public static final int UNKNOWN = -1;
+
+    private static final int MAX_SEEDS = 256;
+    private static final int SEEDS_PER_SIZE = 64;
+
+    private final int seed;
+    private final int mask;
+    private final byte[][] slotKeys;
+    private final int[] slotIds;
+    private final Map<String, Integer> fallback;  // null if hashed perfectly
+
+    public CliKeyTable(String... encodedKeys) {
+        int size = 4;
+        while (size < encodedKeys.length * 4) size <<= 1;
+
+        Set<String> seen = new HashSet<String>();
+        byte[][] keys = new byte[encodedKeys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            String key = encodedKeys[i];
+            if (!seen.add(key)) {
+                throw new IllegalArgumentException("Duplicate key: " + key);
+            }
+            keys[i] = new byte[key.length()];
+            for (int j = 0; j < key.length(); j++) {
+                keys[i][j] = (byte) key.charAt(j);
+            }
+        }
+
+        // Search for a seed that puts every key in its own slot.  With the
+        // table at least 4x the key count this takes a handful of tries; if
+        // we're unlucky, double the table and keep going, for a while.
+        for (int seed = 0; seed < MAX_SEEDS; seed++) {
+            if (seed > 0 && seed % SEEDS_PER_SIZE == 0) size <<= 1;
+            int[] ids = placeKeys(keys, seed, size - 1);
+            if (ids != null) {
+                this.seed = seed;
+                this.mask = size - 1;
+                this.slotIds = ids;
+                this.slotKeys = new byte[size][];
+                for (int slot = 0; slot < size; slot++) {
+                    if (ids[slot] != UNKNOWN) slotKeys[slot] = keys[ids[slot]];
+                }
+                this.fallback = null;
+                return;
+            }
+        }
+        this.seed = 0;
+        this.mask = 0;
+        this.slotIds = null;
+        this.slotKeys = null;
+        this.fallback = new HashMap<String, Integer>();
+        for (int i = 0; i < keys.length; i++) {
+            fallback.put(latin1(keys[i], 0, keys[i].length), i);
+        }
+    }
+
+    // False if the keys forced the HashMap fallback.
+    boolean isPerfectHash() {
+        return fallback == null;
+    }
+
+    // Returns the id for bytes[from, to), or UNKNOWN.
+    public int lookup(byte[] bytes, int from, int to) {
+        if (fallback != null) {
+            Integer id = fallback.get(latin1(bytes, from, to));
+            return id != null ? id : UNKNOWN;
+        }
+        int slot = hash(seed, bytes, from, to) & mask;
+        byte[] key = slotKeys[slot];
+        if (key == null || key.length != to - from) return UNKNOWN;
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != bytes[from + i]) return UNKNOWN;
+        }
+        return slotIds[slot];
+    }
+
+    private static int[] placeKeys(byte[][] keys, int seed, int mask) {
+        int[] ids = new int[mask + 1];
+        for (int slot = 0; slot <= mask; slot++) ids[slot] = UNKNOWN;
+        for (int i = 0; i < keys.length; i++) {
+            int slot = hash(seed, keys[i], 0, keys[i].length) & mask;
+            if (ids[slot] != UNKNOWN) return null;
+            ids[slot] = i;
+        }
+        return ids;
+    }
+
+    // FNV-1a from a seed-dependent basis.  The seed has to be mixed into
+    // every step: added once to a plain polynomial hash, it shifts keys of
+    // equal length by the same amount, and keys that collide under one seed
+    // collide under all of them.
+    private static int hash(int seed, byte[] bytes, int from, int to) {
+        int h = 0x811c9dc5 ^ (seed * 0x9e3779b9);
+        for (int i = from; i < to; i++) {
+            h = (h ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static String latin1(byte[] bytes, int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = from; i < to; i++) {
+            chars[i - from] = (char) (bytes[i] & 0xff);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,135 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// Reads newline-terminated lines from the CLI socket without allocating
+// per line.  The channel fills one direct buffer which we scan in place for
+// '\n'; each complete line is copied once into a reusable array and handed
+// to the LineHandler as a byte slice.  Nothing in here creates Strings.
+//
+// Lines that may be huge (player lists, library listings) can instead be
+// streamed: once a line's first token is in, the handler may return a
+// CliRecordParser, and the rest of that line is fed to it as it arrives
+// rather than buffered.
+//
+// Not thread-safe: owned by the connection's ListeningThread.
+public class CliLineReader {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int INITIAL_LINE_SIZE = 1024;
+
+    public interface LineHandler {
+        // The slice is only valid until this method returns.
+        void onLineReceived(byte[] line, int offset, int length);
+
+        // Called with each line's first token as soon as it's complete.
+        // Return a parser to stream the line through (onLineReceived()
+        // then isn't called for it), or null to have it buffered.
+        CliRecordParser streamLine(byte[] token, int offset, int length);
+
+        // After a streamed line has ended: its header, as kept by the
+        // parser.  Only valid until this method returns.
+        void onStreamedLineEnd(byte[] header, int offset, int length);
+    }
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Accumulates the current line; grows (and stays grown) for long
+    // lines that aren't streamed.
+    private byte[] line = new byte[INITIAL_LINE_SIZE];
+    private int lineLength = 0;
+
+    // The current line's first token has been offered to streamLine().
+    private boolean lineStartSeen = false;
+
+    // Non-null while streaming the current line.
+    private CliRecordParser streaming;
+    private final byte[] chunk = new byte[READ_BUFFER_SIZE];
+
+    public CliLineReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        readBuffer.flip();  // empty, ready for draining
+    }
+
+    // Blocks until at least one read completes, then dispatches every
+    // complete line in the buffer.  Returns false on EOF.
+    public boolean readLines(LineHandler handler) throws IOException {
+        readBuffer.compact();
+        int read = channel.read(readBuffer);
+        readBuffer.flip();
+        if (read == -1) {
+            return false;
+        }
+
+        final ByteBuffer buffer = readBuffer;
+        int start = buffer.position();
+        final int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            byte b = buffer.get(i);
+            if (b == ' ' && !lineStartSeen) {
+                lineStartSeen = true;
+                appendToLine(start, i - start);
+                start = i;
+                streaming = handler.streamLine(line, 0, lineLength);
+                if (streaming != null) {
+                    streaming.startLine();
+                    streaming.feed(line, 0, lineLength);
+                    lineLength = 0;
+                }
+                continue;
+            }
+            if (b != '\n') continue;
+            lineStartSeen = false;
+            if (streaming != null) {
+                feedStreaming(start, i - start);
+                start = i + 1;
+                CliRecordParser parser = streaming;
+                streaming = null;
+                parser.endLine();
+                handler.onStreamedLineEnd(parser.getHeader(), 0, parser.getHeaderLength());
+                continue;
+            }
+            appendToLine(start, i - start);
+            start = i + 1;
+
+            int length = lineLength;
+            if (length > 0 && line[length - 1] == '\r') length--;
+            lineLength = 0;
+            if (length > 0) {
+                handler.onLineReceived(line, 0, length);
+            }
+        }
+        // Stash (or stream) the partial trailing line; the buffer is then
+        // fully drained.
+        if (streaming != null) {
+            feedStreaming(start, limit - start);
+        } else {
+            appendToLine(start, limit - start);
+        }
+        buffer.position(limit);
+        return true;
+    }
+
+    private void feedStreaming(int from, int count) {
+        if (count == 0) return;
+        readBuffer.position(from);
+        readBuffer.get(chunk, 0, count);
+        streaming.feed(chunk, 0, count);
+    }
+
+    private void appendToLine(int from, int count) {
+        if (count == 0) return;
+        if (lineLength + count > line.length) {
+            int newSize = line.length * 2;
+            while (newSize < lineLength + count) newSize *= 2;
+            byte[] newLine = new byte[newSize];
+            System.arraycopy(line, 0, newLine, 0, lineLength);
+            line = newLine;
+        }
+        readBuffer.position(from);
+        readBuffer.get(line, lineLength, count);
+        lineLength += count;
+    }
+}
@@ -0,0 +1,154 @@
+package com.danga.squeezer;
+
+// Push parser for CLI responses that carry many records on one line, e.g.
+//   players 0 100 count%3A2 playerindex%3A0 playerid%3A... name%3A... playerindex%3A1 ...
+//   titles 0 500 id%3A1 title%3A... id%3A2 title%3A... count%3A81234
+// CliLineReader feeds it the line's bytes as they come off the socket
+// instead of buffering the whole line, and each record goes to the
+// RecordHandler as soon as the next one starts.  So memory use is bounded
+// by the largest record, not the size of the response.
+//
+// A record is a run of tokens starting with recordStartKey.  Everything
+// else (the command, its positional parameters, and "count" wherever it
+// appears) is the line's header, handed over once the line ends.
+//
+// Back-pressure is implicit: the handler runs on the ListeningThread, so
+// while it's busy nothing more is read from the socket, and TCP flow
+// control holds the server back.  A handler that has seen enough can
+// return false to skip the rest of the line.
+//
+// Not thread-safe: owned by a ListeningThread, one line at a time.
+public class CliRecordParser {
+    private static final int MAX_HEADER_BYTES = 1024;
+    private static final byte[] COUNT_KEY = encodedKeyPrefix("count");
+
+    public interface RecordHandler {
+        // record is reset to one record's tokens, the first being the
+        // start key.  Only valid during the call.  Return false to skip
+        // the rest of the line.
+        boolean onRecord(CliTokenizer record);
+
+        // header is reset to the line's tokens outside of records.
+        void onLineEnd(CliTokenizer header);
+    }
+
+    private final byte[] recordStartKey;
+    private final RecordHandler handler;
+    private final CliTokenizer tokenizer = new CliTokenizer();
+
+    private byte[] token = new byte[256];
+    private int tokenLength = 0;
+    private byte[] record = new byte[1024];
+    private int recordLength = 0;
+    private boolean inRecord = false;
+    private boolean skipping = false;
+    private final byte[] header = new byte[MAX_HEADER_BYTES];
+    private int headerLength = 0;
+
+    public CliRecordParser(String recordStartKey, RecordHandler handler) {
+        this.recordStartKey = encodedKeyPrefix(recordStartKey);
+        this.handler = handler;
+    }
+
+    public void startLine() {
+        tokenLength = 0;
+        recordLength = 0;
+        inRecord = false;
+        skipping = false;
+        headerLength = 0;
+    }
+
+    public void feed(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b == ' ') {
+                endToken();
+            } else if (b != '\r') {
+                if (tokenLength == token.length) token = grow(token, tokenLength);
+                token[tokenLength++] = b;
+            }
+        }
+    }
+
+    public void endLine() {
+        endToken();
+        flushRecord();
+        tokenizer.reset(header, 0, headerLength);
+        handler.onLineEnd(tokenizer);
+    }
+
+    // The header of the line just ended (at most MAX_HEADER_BYTES of it),
+    // valid until the next startLine().
+    public byte[] getHeader() {
+        return header;
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    private void endToken() {
+        if (tokenLength == 0) return;
+        if (startsWith(token, tokenLength, recordStartKey)) {
+            flushRecord();
+            inRecord = true;
+            appendToRecord();
+        } else if (!inRecord || startsWith(token, tokenLength, COUNT_KEY)) {
+            appendToHeader();
+        } else {
+            appendToRecord();
+        }
+        tokenLength = 0;
+    }
+
+    private void flushRecord() {
+        if (inRecord && !skipping) {
+            tokenizer.reset(record, 0, recordLength);
+            if (!handler.onRecord(tokenizer)) skipping = true;
+        }
+        inRecord = false;
+        recordLength = 0;
+    }
+
+    private void appendToRecord() {
+        if (skipping) return;
+        while (recordLength + tokenLength + 1 > record.length) {
+            record = grow(record, recordLength);
+        }
+        if (recordLength > 0) record[recordLength++] = ' ';
+        System.arraycopy(token, 0, record, recordLength, tokenLength);
+        recordLength += tokenLength;
+    }
+
+    private void appendToHeader() {
+        int separator = headerLength > 0 ? 1 : 0;
+        if (headerLength + separator + tokenLength > header.length) return;
+        if (separator > 0) header[headerLength++] = ' ';
+        System.arraycopy(token, 0, header, headerLength, tokenLength);
+        headerLength += tokenLength;
+    }
+
+    private static byte[] grow(byte[] bytes, int length) {
+        byte[] grown = new byte[bytes.length * 2];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        return grown;
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    // "key" -> "key%3A", as it appears on the wire.
+    private static byte[] encodedKeyPrefix(String key) {
+        String prefix = key + "%3A";
+        byte[] bytes = new byte[prefix.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) prefix.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,272 @@
+package com.danga.squeezer;
+
+// Cursor over one CLI line (as handed out by CliLineReader) that walks the
+// space-separated tokens in place.  Tagged tokens look like "key%3Avalue";
+// the key/value boundary is found without decoding, and values are
+// percent- and UTF-8-decoded into a reusable scratch char array, so callers
+// only build a String when they actually need to keep the value.
+//
+// Not thread-safe: each ListeningThread owns one.
+public class CliTokenizer {
+    private byte[] line;
+    private int pos;
+    private int end;
+
+    private int tokenIndex;
+    private int tokenStart;
+    private int tokenEnd;
+    private int colonPos;  // start of "%3A" in the current token, or -1
+
+    // Scratch space for decoding.  Grows as needed, never shrinks.
+    private byte[] bytes = new byte[256];
+    private char[] chars = new char[256];
+    private int charCount;
+
+    public void reset(byte[] line, int offset, int length) {
+        this.line = line;
+        this.pos = offset;
+        this.end = offset + length;
+        tokenIndex = -1;
+        tokenStart = tokenEnd = offset;
+        colonPos = -1;
+    }
+
+    // Advances to the next non-empty token.  Returns false at end of line.
+    public boolean next() {
+        while (pos < end && line[pos] == ' ') pos++;
+        if (pos >= end) return false;
+        tokenStart = pos;
+        colonPos = -1;
+        while (pos < end && line[pos] != ' ') {
+            if (colonPos == -1 && line[pos] == '%' && pos + 2 < end &&
+                line[pos + 1] == '3' && line[pos + 2] == 'A') {
+                colonPos = pos;
+            }
+            pos++;
+        }
+        tokenEnd = pos;
+        tokenIndex++;
+        return true;
+    }
+
+    // Zero-based index of the current token within the line.
+    public int tokenIndex() {
+        return tokenIndex;
+    }
+
+    public boolean hasKey() {
+        return colonPos != -1;
+    }
+
+    // Compares the raw (still encoded) token against an ASCII string.
+    public boolean tokenEquals(String ascii) {
+        return rawEquals(tokenStart, tokenEnd, ascii);
+    }
+
+    // Compares the raw (still encoded) key of a "key%3Avalue" token,
+    // e.g. keyEquals("mixer%20volume").
+    public boolean keyEquals(String encodedKey) {
+        return colonPos != -1 && rawEquals(tokenStart, colonPos, encodedKey);
+    }
+
+    // Looks up the raw token (e.g. a command name) in table.
+    public int tokenId(CliKeyTable table) {
+        return table.lookup(line, tokenStart, tokenEnd);
+    }
+
+    // Looks up the raw key of a "key%3Avalue" token in table, or returns
+    // CliKeyTable.UNKNOWN if the token has no key.
+    public int keyId(CliKeyTable table) {
+        if (colonPos == -1) return CliKeyTable.UNKNOWN;
+        return table.lookup(line, tokenStart, colonPos);
+    }
+
+    // Compares the decoded token against value, without allocating.
+    public boolean decodedTokenEquals(String value) {
+        decode(tokenStart, tokenEnd);
+        return Util.contentEquals(value, chars, charCount);
+    }
+
+    // Decodes the whole token into the scratch array; see chars().
+    public int decodeToken() {
+        return decode(tokenStart, tokenEnd);
+    }
+
+    // Decodes the value part of a "key%3Avalue" token into the scratch
+    // array; see chars().
+    public int decodeValue() {
+        if (colonPos == -1) return decode(tokenStart, tokenStart);
+        return decode(colonPos + 3, tokenEnd);
+    }
+
+    // The result of the last decode; valid until the next decode.
+    public char[] chars() {
+        return chars;
+    }
+
+    public int charCount() {
+        return charCount;
+    }
+
+    public String tokenString() {
+        decodeToken();
+        return new String(chars, 0, charCount);
+    }
+
+    public String valueString() {
+        decodeValue();
+        return new String(chars, 0, charCount);
+    }
+
+    // Same semantics as Util.parseDecimalIntOrZero, but on the raw value
+    // bytes.  (Numbers never need decoding.)
+    public int valueAsIntOrZero() {
+        int i = colonPos == -1 ? tokenStart : colonPos + 3;
+        return parseDecimalIntOrZero(i, tokenEnd);
+    }
+
+    // The same for values that can exceed an int, e.g. Unix timestamps.
+    public long valueAsLongOrZero() {
+        int i = colonPos == -1 ? tokenStart : colonPos + 3;
+        return parseDecimalLongOrZero(i, tokenEnd);
+    }
+
+    // Parses a value like "99.803" (seconds) into milliseconds.
+    public int valueAsMillisOrZero() {
+        int i = colonPos == -1 ? tokenStart : colonPos + 3;
+        int seconds = 0;
+        for (; i < tokenEnd && line[i] != '.'; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9') return 0;
+            seconds = seconds * 10 + (b - '0');
+        }
+        int millis = 0;
+        int scale = 100;
+        for (i++; i < tokenEnd && scale > 0; i++, scale /= 10) {
+            byte b = line[i];
+            if (b < '0' || b > '9') break;
+            millis += (b - '0') * scale;
+        }
+        return seconds * 1000 + millis;
+    }
+
+    public int tokenAsIntOrZero() {
+        return parseDecimalIntOrZero(tokenStart, tokenEnd);
+    }
+
+    private int parseDecimalIntOrZero(int i, int end) {
+        return (int) parseDecimalLongOrZero(i, end);
+    }
+
+    private long parseDecimalLongOrZero(int i, int end) {
+        boolean negative = false;
+        if (i < end && line[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            byte b = line[i];
+            if (b == '.') break;
+            if (b < '0' || b > '9') return 0;
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private boolean rawEquals(int from, int to, String ascii) {
+        int length = ascii.length();
+        if (to - from != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (line[from + i] != ascii.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Percent-decodes line[from, to) into bytes, then UTF-8 decodes those
+    // into chars.  Mirrors URLDecoder.decode(s, "UTF-8"), including '+'.
+    private int decode(int from, int to) {
+        int length = to - from;
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+            chars = new char[bytes.length];
+        }
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            byte b = line[i];
+            if (b == '%' && i + 2 < to) {
+                int hi = hexValue(line[i + 1]);
+                int lo = hexValue(line[i + 2]);
+                if (hi != -1 && lo != -1) {
+                    bytes[n++] = (byte) ((hi << 4) | lo);
+                    i += 2;
+                    continue;
+                }
+            }
+            bytes[n++] = b == '+' ? (byte) ' ' : b;
+        }
+        charCount = decodeUtf8(n);
+        return charCount;
+    }
+
+    private int decodeUtf8(int byteCount) {
+        int out = 0;
+        int i = 0;
+        while (i < byteCount) {
+            int b = bytes[i++] & 0xff;
+            if (b < 0x80) {
+                chars[out++] = (char) b;
+                continue;
+            }
+            int extra;
+            int codePoint;
+            if ((b & 0xe0) == 0xc0) {
+                extra = 1;
+                codePoint = b & 0x1f;
+            } else if ((b & 0xf0) == 0xe0) {
+                extra = 2;
+                codePoint = b & 0x0f;
+            } else if ((b & 0xf8) == 0xf0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                chars[out++] = '\uFFFD';
+                continue;
+            }
+            if (i + extra > byteCount) {
+                chars[out++] = '\uFFFD';
+                break;
+            }
+            boolean malformed = false;
+            for (int k = 0; k < extra; k++) {
+                int c = bytes[i + k] & 0xff;
+                if ((c & 0xc0) != 0x80) {
+                    malformed = true;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (c & 0x3f);
+            }
+            if (malformed) {
+                chars[out++] = '\uFFFD';
+                continue;
+            }
+            i += extra;
+            if (codePoint >= 0x10000) {
+                // Supplementary character; never longer than its 4 bytes.
+                codePoint -= 0x10000;
+                chars[out++] = (char) (0xd800 + (codePoint >> 10));
+                chars[out++] = (char) (0xdc00 + (codePoint & 0x3ff));
+            } else {
+                chars[out++] = (char) codePoint;
+            }
+        }
+        return out;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        return -1;
+    }
+}
@@ -1,21 +1,28 @@
 package com.danga.squeezer;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.URLEncoder;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
-import android.content.SharedPreferences;
-import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class ConnectionState {
     private final String TAG = "ConnectionState";
 
+    // How long to hold back a command so that others issued right after it
+    // go out in the same packet.
+    private static final long COMMAND_COALESCE_MS = 15;
+
     private final int connectionGeneration;
 
     private final AtomicBoolean isConnected = new AtomicBoolean(false);
@@ -23,128 +30,400 @@ public class ConnectionState {
     private final ConcurrentHashMap<String, PlayerState> playerState =
         new ConcurrentHashMap<String, PlayerState>();
     
-    private final AtomicReference<Socket> socketRef = new AtomicReference<Socket>();
+    private final AtomicReference<SocketChannel> socketChannel = new AtomicReference<SocketChannel>();
+
+    private final CliCommandPipeline commandPipeline;
+    private final VolumeController volumeController;
+    private final AtomicReference<String> activePlayerId = new AtomicReference<String>();
+    // The same, as it appears on the wire, as a one-key table.
+    private final AtomicReference<CliKeyTable> encodedActivePlayerId =
+        new AtomicReference<CliKeyTable>(new CliKeyTable());
 
-    private final AtomicReference<PrintWriter> socketWriter = new AtomicReference<PrintWriter>();
-        private final AtomicReference<String> activePlayerId = new AtomicReference<String>();
+    // Lines read, and lines dropped unparsed; see isTrackedPlayer.
+    private final AtomicInteger linesFiltered = new AtomicInteger();
+    private final AtomicInteger linesRejected = new AtomicInteger();
 
-        private final AtomicReference<Map<String, String>> knownPlayers = 
+    // The notification types last asked for with "subscribe".
+    private final AtomicReference<String> subscribedNotifications =
+        new AtomicReference<String>("");
+
+    private final AtomicReference<Map<String, String>> knownPlayers = 
         new AtomicReference<Map<String, String>>();
 
+    // Routes a line to its player by the raw, still-encoded first token,
+    // so we never decode the player ID of a line.  Rebuilt whenever
+    // knownPlayers changes.
+    private final AtomicReference<PlayerDirectory> playerDirectory =
+        new AtomicReference<PlayerDirectory>(PlayerDirectory.EMPTY);
+
+    private static final class PlayerDirectory {
+        static final PlayerDirectory EMPTY =
+            new PlayerDirectory(new CliKeyTable(), new PlayerState[0]);
+
+        final CliKeyTable encodedIds;
+        final PlayerState[] states;  // indexed by encodedIds' ids
+
+        PlayerDirectory(CliKeyTable encodedIds, PlayerState[] states) {
+            this.encodedIds = encodedIds;
+            this.states = states;
+        }
+    }
+
+    // Library listings being browsed, by category; see BrowseCache.
+    private final ConcurrentHashMap<String, BrowseCache> browseCaches =
+        new ConcurrentHashMap<String, BrowseCache>();
+
+    private final LibrarySync librarySync;
+
     // Where we connected (or are connecting) to:
     private final String host;
     private final int cliPort;
 
     private final AtomicReference<Integer> httpPort = new AtomicReference<Integer>();  // set post-connect
+    private final AtomicReference<HttpConnectionPool> httpConnectionPool =
+        new AtomicReference<HttpConnectionPool>();
     
-    public ConnectionState(int connectionGeneration, String host, int cliPort) {
+    // What a connection knew when it was lost, so the next one to the same
+    // server can pick up where it left off; see restoreSession().  Or, on a
+    // warm start, what we remember from last time; see forLastPlayer().
+    public static final class Session {
+        final Map<String, PlayerState> playerStates;
+        final Map<String, String> knownPlayers;
+        final String activePlayerId;
+        final Integer httpPort;
+        final boolean playerListComplete;
+        final long lostAt;  // SystemClock.elapsedRealtime()
+
+        Session(Map<String, PlayerState> playerStates, Map<String, String> knownPlayers,
+                String activePlayerId, Integer httpPort, boolean playerListComplete) {
+            this.playerStates = playerStates;
+            this.knownPlayers = knownPlayers;
+            this.activePlayerId = activePlayerId;
+            this.httpPort = httpPort;
+            this.playerListComplete = playerListComplete;
+            this.lostAt = SystemClock.elapsedRealtime();
+        }
+
+        // Assumes the player we used last is still there, so it can be made
+        // active (and asked for its status) before the player list is in.
+        public static Session forLastPlayer(String playerId, String playerName) {
+            Map<String, String> players = new HashMap<String, String>();
+            players.put(playerId, playerName);
+            return new Session(new HashMap<String, PlayerState>(), players, playerId,
+                    null, false);
+        }
+
+        public String getActivePlayerId() {
+            return activePlayerId;
+        }
+
+        // False if the players need listing again regardless of age.
+        public boolean isPlayerListComplete() {
+            return playerListComplete && knownPlayers != null && !knownPlayers.isEmpty();
+        }
+
+        public long getAgeMillis() {
+            return SystemClock.elapsedRealtime() - lostAt;
+        }
+    }
+
+    public ConnectionState(int connectionGeneration, String host, int cliPort,
+            ScheduledExecutorService executor) {
         this.connectionGeneration = connectionGeneration;
         this.host = host;
         this.cliPort = cliPort;
+        this.commandPipeline = new CliCommandPipeline(executor, COMMAND_COALESCE_MS);
+        this.volumeController = new VolumeController(this, executor);
+        this.librarySync = new LibrarySync(host);
     }
         
+    public int getConnectionGeneration() {
+        return connectionGeneration;
+    }
+
     public boolean isConnected() {
         return this.isConnected.get();
     }
 
+    public String getHost() {
+        return host;
+    }
+
+    // Blocking; call off the UI thread.  The channel stays in blocking
+    // mode: the ListeningThread reads it through a CliLineReader while
+    // the command pipeline writes to it from the executor.
+    public void connect(int timeoutMs) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, cliPort), timeoutMs);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        socketChannel.set(channel);
+        commandPipeline.setChannel(channel);
+        isConnected.set(true);
+    }
+
+    public CliCommandPipeline getCommandPipeline() {
+        return commandPipeline;
+    }
+
+    // Tracks the active player's volume.
+    public VolumeController getVolumeController() {
+        return volumeController;
+    }
+
+    public Integer getHttpPort() {
+        return httpPort.get();
+    }
+
+    public void setHttpPort(int port) {
+        httpPort.set(port);
+        HttpConnectionPool old = httpConnectionPool.getAndSet(
+                port == 0 ? null : new HttpConnectionPool(host, port));
+        if (old != null) old.close();
+    }
+
+    // For requests to the server's web port.  Null until the HTTP port
+    // is known.
+    public HttpConnectionPool getHttpConnectionPool() {
+        return httpConnectionPool.get();
+    }
+
+    public BrowseCache getBrowseCache(String category) {
+        BrowseCache cache = browseCaches.get(category);
+        if (cache == null) {
+            browseCaches.putIfAbsent(category, new BrowseCache(category));
+            cache = browseCaches.get(category);
+        }
+        return cache;
+    }
+
+    // Brings the on-device library index up to date with this server.
+    public LibrarySync getLibrarySync() {
+        return librarySync;
+    }
+
+    public SocketChannel getSocketChannel() {
+        return socketChannel.get();
+    }
+
+    // Call before disconnect(), which forgets the active player.
+    public Session getSession() {
+        return new Session(new HashMap<String, PlayerState>(playerState), knownPlayers.get(),
+                activePlayerId.get(), httpPort.get(), true);
+    }
+
+    // Starts players off with what PlayerStateStore saved last time, until
+    // their status comes in.  Call before connect().
+    public void restoreSnapshots(Map<String, PlayerState.Snapshot> snapshots) {
+        for (Map.Entry<String, PlayerState.Snapshot> entry : snapshots.entrySet()) {
+            getPlayerState(entry.getKey()).restore(entry.getValue());
+        }
+    }
+
+    // Carries a lost connection's players and their last known state over,
+    // so they can be shown straight away.  Call before connect().  The
+    // active player is left for the caller to switch to, with the usual
+    // subscriptions and callbacks.
+    public void restoreSession(Session session) {
+        playerState.putAll(session.playerStates);
+        if (session.knownPlayers != null) setKnownPlayers(session.knownPlayers);
+        if (session.httpPort != null) setHttpPort(session.httpPort);
+    }
+
     public void disconnect() {
-        Socket socket = socketRef.get();
-        if (socket != null) {
+        SocketChannel channel = socketChannel.get();
+        if (channel != null) {
             try {
-                socket.close();
+                channel.close();
             } catch (IOException e) {}
-            socketRef.set(null);
+            socketChannel.set(null);
         }
+        commandPipeline.close();
+        HttpConnectionPool pool = httpConnectionPool.getAndSet(null);
+        if (pool != null) pool.close();
         isConnected.set(false);
         activePlayerId.set(null);
     }
 
-    public void sendPlayerCommand(String command) {
+    // Commands sent together (or within COMMAND_COALESCE_MS) share a packet.
+    public void sendCommand(String... commands) {
+        for (String command : commands) {
+            commandPipeline.send(command);
+        }
+    }
+
+    // The returned Future completes with the server's reply line, or null
+    // if there was none (e.g. disconnected).  Never wait on it from the
+    // ListeningThread.
+    public Future<String> sendCommandForReply(String command) {
+        return commandPipeline.send(command);
+    }
+
+    // Returns null if there's no active player.
+    public Future<String> sendPlayerCommand(String command) {
         String playerId = activePlayerId.get();
         if (playerId == null) {
-            return;
+            return null;
         }
-        // TODO: impl
-        
+        return sendPlayerCommand(playerId, command);
+    }
+
+    public Future<String> sendPlayerCommand(String playerId, String command) {
+        return commandPipeline.send(URLEncoder.encode(playerId) + " " + command);
     }
 
     public String getActivePlayerId() {
         return activePlayerId.get();
     }
 
-    public boolean changeActivePlayer(String playerId) {
-        Map<String, String> players = knownPlayers.get();
-        if (players == null) {
-            Log.v(TAG, "Can't set player; none known.");
-            return false;
+    // Returns null if there's no active player.
+    public PlayerState getActivePlayerState() {
+        String playerId = activePlayerId.get();
+        if (playerId == null) return null;
+        return getPlayerState(playerId);
+    }
+
+    public PlayerState getPlayerState(String playerId) {
+        PlayerState state = playerState.get(playerId);
+        if (state == null) {
+            playerState.putIfAbsent(playerId, new PlayerState(playerId));
+            state = playerState.get(playerId);
         }
-        if (!players.containsKey(playerId)) {
-            Log.v(TAG, "Player " + playerId + " not known.");
-            return false;
+        return state;
+    }
+
+    // Returns the state of the player whose (encoded) ID is the tokenizer's
+    // current token, or null if it's not a player we know.
+    public PlayerState lookupPlayerState(CliTokenizer tokens) {
+        PlayerDirectory directory = playerDirectory.get();
+        int id = tokens.tokenId(directory.encodedIds);
+        if (id == CliKeyTable.UNKNOWN) return null;
+        return directory.states[id];
+    }
+
+    // True if bytes[from, to) is the raw ID of a player we keep state for,
+    // or of the active player.  Costs one hash and a compare, so lines for
+    // other players can be dropped before they're tokenized.
+    public boolean isTrackedPlayer(byte[] bytes, int from, int to) {
+        if (playerDirectory.get().encodedIds.lookup(bytes, from, to) != CliKeyTable.UNKNOWN) {
+            return true;
+        }
+        return encodedActivePlayerId.get().lookup(bytes, from, to) != CliKeyTable.UNKNOWN;
+    }
+
+    // True if the tokenizer's current (raw) token is the active player's ID.
+    public boolean isActivePlayer(CliTokenizer tokens) {
+        return tokens.tokenId(encodedActivePlayerId.get()) != CliKeyTable.UNKNOWN;
+    }
+
+    // Called by the ListeningThread for each line it (pre)filters.
+    public void countFilteredLine(boolean rejected) {
+        int filtered = linesFiltered.incrementAndGet();
+        int rejectedCount = rejected ? linesRejected.incrementAndGet() : linesRejected.get();
+        if (filtered % 1000 == 0) {
+            Log.v(TAG, "lines: " + filtered + " rejected=" + rejectedCount
+                  + " (" + (100 * rejectedCount / filtered) + "% reject rate)");
+        }
+    }
+
+    public int getLinesFiltered() {
+        return linesFiltered.get();
+    }
+
+    public int getLinesRejected() {
+        return linesRejected.get();
+    }
+
+    public Map<String, String> getKnownPlayers() {
+        return knownPlayers.get();
+    }
+
+    // Players that went away keep their state, in case they come back.
+    public synchronized void setKnownPlayers(Map<String, String> players) {
+        String[] encodedIds = new String[players.size()];
+        PlayerState[] states = new PlayerState[players.size()];
+        int n = 0;
+        for (String playerId : players.keySet()) {
+            encodedIds[n] = URLEncoder.encode(playerId);
+            states[n] = getPlayerState(playerId);
+            n++;
+        }
+        knownPlayers.set(players);
+        playerDirectory.set(new PlayerDirectory(new CliKeyTable(encodedIds), states));
+    }
+
+    // Adds a player (or renames a known one) without relisting them all.
+    // Returns false if it was already known by that name.
+    public synchronized boolean addKnownPlayer(String playerId, String playerName) {
+        Map<String, String> players = new HashMap<String, String>();
+        Map<String, String> known = knownPlayers.get();
+        if (known != null) players.putAll(known);
+        if (playerName.equals(players.put(playerId, playerName))) return false;
+        setKnownPlayers(players);
+        return true;
+    }
+
+    // Returns false if the player wasn't known.
+    public synchronized boolean removeKnownPlayer(String playerId) {
+        Map<String, String> known = knownPlayers.get();
+        if (known == null || !known.containsKey(playerId)) return false;
+        Map<String, String> players = new HashMap<String, String>(known);
+        players.remove(playerId);
+        setKnownPlayers(players);
+        return true;
+    }
+
+    // Narrows the notifications the server pushes to the given
+    // comma-separated commands.  Only sends anything if they changed.
+    public synchronized void subscribeToNotifications(String types) {
+        if (Util.atomicStringUpdated(subscribedNotifications, types)) {
+            Log.v(TAG, "Subscribing to: " + types);
+            sendCommand("subscribe " + types);
         }
+    }
 
-        Log.v(TAG, "Active player now: " + playerId + ", " + players.get(playerId));
-        String oldPlayerId =  activePlayerId();
+    // Returns true if the active player changed.  The caller deals with
+    // subscriptions, preferences and callbacks.
+    public boolean changeActivePlayer(String playerId) {
+        Log.v(TAG, "Active player now: " + playerId);
+        String oldPlayerId = activePlayerId.get();
         boolean changed = Util.atomicStringUpdated(activePlayerId, playerId);
+        if (changed) {
+            volumeController.reset(playerId);
+            encodedActivePlayerId.set(new CliKeyTable(URLEncoder.encode(playerId)));
+        }
 
         if (oldPlayerId != null && !oldPlayerId.equals(playerId)) {
             // Unsubscribe from the old player's status.  (despite what
             // the docs say, multiple subscribes can be active and flood us.)
             sendCommand(URLEncoder.encode(oldPlayerId) + " status - 1 subscribe:0");
         }
-        
-        // Start an async fetch of its status.
-        sendPlayerCommand("status - 1 tags:jylqwaJ");
-
-        if (changed) {
-            updatePlayerSubscriptionState();
-        
-            // NOTE: this involves a write and can block (sqlite lookup via binder call), so
-            // should be done off-thread, so we can process service requests & send our callback
-            // as quickly as possible.
-            executor.execute(new Runnable() {
-                public void run() {
-                    final SharedPreferences preferences = getSharedPreferences(Preferences.NAME, MODE_PRIVATE);
-                    SharedPreferences.Editor editor = preferences.edit();              
-                    editor.putString(Preferences.KEY_LASTPLAYER, playerId);
-                    editor.commit();
-                }
-            });
-        }
-        
-        if (callback.get() != null) {
-            try {
-                if (playerId != null && players.containsKey(playerId)) {
-                    callback.get().onPlayerChanged(
-                            playerId, players.get(playerId));
-                } else {
-                    callback.get().onPlayerChanged("", "");
-                }
-            } catch (RemoteException e) {}
-        }
-        return true;
+        return changed;
     }
 
+    // Returns the predicted new volume without waiting for the server.
     public int adjustVolumeBy(int delta) {
-        if (delta > 0) {
-            sendPlayerCommand("mixer volume %2B" + delta);
-        } else if (delta < 0) {
-            sendPlayerCommand("mixer volume " + delta);
-        }
-        return 50 + delta;  // TODO: return non-blocking dead-reckoning value
+        return volumeController.adjustBy(delta);
     }
 
+    // Returns false if there's no active player.  Updates the local state
+    // optimistically; the caller runs the side effects of the change.
     public boolean togglePlayPause() {
         Log.v(TAG, "pause...");
-        if (isPlaying.get()) {
-            setPlayingState(false);
+        PlayerState state = getActivePlayerState();
+        if (state == null) return false;
+        if (state.isPlaying()) {
+            state.setPlayingLocally(false);
             // NOTE: we never send ambiguous "pause" toggle commands (without the '1')
             // because then we'd get confused when they came back in to us, not being
             // able to differentiate ours coming back on the listen channel vs. those
             // of those idiots at the dinner party messing around.
             sendPlayerCommand("pause 1");
         } else {
-            setPlayingState(true);
+            state.setPlayingLocally(true);
             // TODO: use 'pause 0 <fade_in_secs>' to fade-in if we knew it was
             // actually paused (as opposed to not playing at all) 
             sendPlayerCommand("play");
@@ -155,7 +434,8 @@ public class ConnectionState {
 
     public boolean play() {
         Log.v(TAG, "play..");
-        isPlaying.set(true);
+        PlayerState state = getActivePlayerState();
+        if (state != null) state.setPlayingLocally(true);
         sendPlayerCommand("play");
         Log.v(TAG, "played.");
         return true;
@@ -165,7 +445,8 @@ public class ConnectionState {
         if (!isConnected()) {
             return false;
         }
-        isPlaying.set(false);
+        PlayerState state = getActivePlayerState();
+        if (state != null) state.setPlayingLocally(false);
         sendPlayerCommand("stop");
         return true;
     }
@@ -0,0 +1,349 @@
+package com.danga.squeezer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Minimal HTTP/1.1 GET client for SqueezeCenter's web port, keeping
+// connections alive between requests so repeated fetches (album art,
+// browsing) skip TCP setup.  One per ConnectionState, created once the
+// CLI tells us the HTTP port.
+//
+// At most MAX_CONNECTIONS are open at once; further callers wait for one
+// to come free.  getAll() pipelines several requests on one connection
+// (used for album art prefetches).
+// Every request's timing is logged and summed in the counters.
+public class HttpConnectionPool {
+    private static final String TAG = "HttpConnectionPool";
+    private static final int MAX_CONNECTIONS = 2;
+    private static final int CONNECT_TIMEOUT_MS = 4000;
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    // Idle connections older than this are assumed closed by the server.
+    private static final long MAX_IDLE_MS = 10000;
+
+    private final String host;
+    private final int port;
+    private final String urlPrefix;
+
+    // Guarded by this:
+    private final LinkedList<Connection> idle = new LinkedList<Connection>();
+    private int openConnections = 0;
+    private boolean closed = false;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger reusedConnections = new AtomicInteger();
+    private final AtomicLong totalMillis = new AtomicLong();
+
+    public HttpConnectionPool(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.urlPrefix = "http://" + host + ":" + port + "/";
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // True if url points at this pool's host and port.
+    public boolean serves(String url) {
+        return url.startsWith(urlPrefix);
+    }
+
+    // Blocking.  Takes a full URL on this host or just a path.  Throws
+    // FileNotFoundException on a 404, like URLConnection does.
+    public byte[] get(String url) throws IOException {
+        List<String> urls = new ArrayList<String>(1);
+        urls.add(url);
+        byte[] body = getAll(urls).get(0);
+        if (body == null) throw new FileNotFoundException(url);
+        return body;
+    }
+
+    // Blocking.  Sends all requests on one connection without waiting for
+    // the responses in between, then reads them back in order.  A 404
+    // gives a null body and the rest of the batch carries on; any other
+    // failure fails it as a whole.
+    public List<byte[]> getAll(List<String> urls) throws IOException {
+        List<byte[]> bodies = new ArrayList<byte[]>(urls.size());
+        while (bodies.size() < urls.size()) {
+            List<String> remaining = urls.subList(bodies.size(), urls.size());
+            Connection connection = checkOut();
+            boolean reused = connection.requestCount > 0;
+            int responsesBefore = connection.responseCount;
+            try {
+                pipeline(connection, remaining, bodies);
+            } catch (IOException e) {
+                checkIn(connection, false);
+                if (reused && connection.responseCount == responsesBefore) {
+                    // The server probably dropped the idle connection.
+                    Log.v(TAG, "Retrying on a new connection: " + e);
+                    continue;
+                }
+                throw e;
+            }
+            // pipeline() stops early if the server said it'll close.
+            checkIn(connection, bodies.size() == urls.size() && connection.keepAlive);
+        }
+        return bodies;
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public int getReusedConnectionCount() {
+        return reusedConnections.get();
+    }
+
+    public long getTotalMillis() {
+        return totalMillis.get();
+    }
+
+    // Once closed, every get() fails; callers should go direct instead.
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        List<Connection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<Connection>(idle);
+            idle.clear();
+            openConnections -= toClose.size();
+            notifyAll();
+        }
+        for (Connection connection : toClose) {
+            connection.close();
+        }
+    }
+
+    private void pipeline(Connection connection, List<String> urls, List<byte[]> bodies)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        StringBuilder sb = new StringBuilder();
+        for (String url : urls) {
+            sb.append("GET ").append(path(url)).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(host).append(':').append(port).append("\r\n")
+                .append("Connection: keep-alive\r\n\r\n");
+        }
+        connection.out.write(sb.toString().getBytes("ISO-8859-1"));
+        connection.out.flush();
+
+        for (String url : urls) {
+            boolean reused = connection.requestCount++ > 0;
+            byte[] body = readResponse(connection, url);
+            long now = SystemClock.elapsedRealtime();
+            requests.incrementAndGet();
+            if (reused) reusedConnections.incrementAndGet();
+            totalMillis.addAndGet(now - start);
+            Log.v(TAG, "GET " + url + ": " + (body == null ? "not found" : body.length + " bytes")
+                  + " in " + (now - start) + "ms"
+                  + (reused ? " (reused connection)" : " (connect " + connection.connectMillis + "ms)"));
+            bodies.add(body);
+            start = now;
+            if (!connection.keepAlive) return;
+        }
+    }
+
+    private String path(String url) {
+        return serves(url) ? url.substring(urlPrefix.length() - 1) : url;
+    }
+
+    // Returns null on a 404, having read the body so the connection can
+    // go on to the next response.
+    private byte[] readResponse(Connection connection, String url) throws IOException {
+        InputStream in = connection.in;
+        String statusLine = readLine(in);
+        connection.responseCount++;
+        int code = 0;
+        int space = statusLine.indexOf(' ');
+        if (space != -1 && statusLine.length() >= space + 4) {
+            code = Util.parseDecimalIntOrZero(statusLine.substring(space + 1, space + 4));
+        }
+        boolean http10 = statusLine.startsWith("HTTP/1.0");
+        connection.keepAlive = !http10;
+
+        int contentLength = -1;
+        boolean chunked = false;
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon == -1) continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Util.parseDecimalIntOrZero(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                connection.keepAlive = value.equalsIgnoreCase("keep-alive") ||
+                    (!http10 && !value.equalsIgnoreCase("close"));
+            }
+        }
+
+        byte[] body;
+        if (chunked) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int chunkLength;
+            while ((chunkLength = parseHex(readLine(in))) > 0) {
+                readFully(in, out, chunkLength);
+                readLine(in);
+            }
+            while (readLine(in).length() > 0) {}  // trailers
+            body = out.toByteArray();
+        } else if (contentLength >= 0) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength);
+            readFully(in, out, contentLength);
+            body = out.toByteArray();
+        } else {
+            // Delimited by the server closing the connection.
+            connection.keepAlive = false;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            body = out.toByteArray();
+        }
+
+        if (code == 404) return null;
+        if (code != 200) throw new IOException("HTTP " + code + " for " + url);
+        return body;
+    }
+
+    // Reuses an idle connection, or reserves a slot under the lock and
+    // connects outside it, so a slow connect doesn't hold up everyone else.
+    private Connection checkOut() throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (closed) throw new IOException("Connection pool closed");
+                long now = SystemClock.elapsedRealtime();
+                while (!idle.isEmpty()) {
+                    Connection connection = idle.removeFirst();
+                    if (now - connection.lastUsed < MAX_IDLE_MS) return connection;
+                    openConnections--;
+                    connection.close();
+                }
+                if (openConnections < MAX_CONNECTIONS) break;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted waiting for a connection");
+                }
+            }
+            openConnections++;
+        }
+        try {
+            return new Connection(host, port);
+        } catch (IOException e) {
+            synchronized (this) {
+                openConnections--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void checkIn(Connection connection, boolean reusable) {
+        synchronized (this) {
+            if (reusable && !closed) {
+                connection.lastUsed = SystemClock.elapsedRealtime();
+                idle.addFirst(connection);  // most recently used first
+                notifyAll();
+                return;
+            }
+            openConnections--;
+            notifyAll();
+        }
+        connection.close();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) throw new EOFException();
+            if (c != '\r') sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    private static void readFully(InputStream in, ByteArrayOutputStream out, int length)
+            throws IOException {
+        byte[] buffer = new byte[Math.min(length, 8192)];
+        while (length > 0) {
+            int n = in.read(buffer, 0, Math.min(length, buffer.length));
+            if (n == -1) throw new EOFException();
+            out.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    // Chunk sizes are hex, optionally followed by ";extensions".
+    private static int parseHex(String line) throws IOException {
+        int value = 0;
+        for (int i = 0; i < line.length(); i++) {
+            int digit = Character.digit(line.charAt(i), 16);
+            if (digit == -1) {
+                if (i == 0) throw new IOException("Bad chunk size: " + line);
+                break;
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    private static final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final long connectMillis;
+        int requestCount = 0;
+        int responseCount = 0;
+        boolean keepAlive = true;
+        long lastUsed;
+
+        Connection(String host, int port) throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream(), 8192);
+                out = socket.getOutputStream();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            connectMillis = SystemClock.elapsedRealtime() - start;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package com.danga.squeezer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+// Read-only, memory-mapped search index of the server's artists, albums
+// and titles, so search-as-you-type never has to go over the network.
+// Built by LibraryIndex.Builder from paged CLI listings (see LibrarySync).
+//
+// Names are matched case-insensitively on their UTF-8 bytes: queries of
+// one or two bytes by prefix (binary search over the entries, which are
+// sorted by normalized name), longer ones as substrings via an index of
+// every entry's byte trigrams, verified against the name.
+//
+// File layout, all ints big-endian:
+//   header:    MAGIC, VERSION, lastScan (long), server offset & length,
+//              entry count, entries offset, trigram count, trigrams offset
+//   pool:      UTF-8 bytes of ids, names and normalized names
+//   postings:  entry indices, ascending within each trigram
+//   entries:   ENTRY_INTS ints each: category, id, name & normalized name
+//              (offset and length each)
+//   trigrams:  (trigram, postings offset, posting count), by trigram
+public class LibraryIndex {
+    private static final int MAGIC = 0x53514c49;  // "SQLI"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 44;
+    private static final int ENTRY_INTS = 7;
+    private static final int TRIGRAM_INTS = 3;
+
+    public static final int ARTISTS = 0;
+    public static final int ALBUMS = 1;
+    public static final int TITLES = 2;
+    private static final String[] CATEGORY_NAMES = { "artists", "albums", "titles" };
+
+    private final ByteBuffer buffer;
+    private final long lastScan;
+    private final String server;
+    private final int entryCount;
+    private final int entriesOffset;
+    private final int trigramCount;
+    private final int trigramsOffset;
+
+    // Returns null if there's no usable index in file.
+    public static LibraryIndex open(File file) {
+        if (!file.exists()) return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC ||
+                    buffer.getInt(4) != VERSION) {
+                    return null;
+                }
+                return new LibraryIndex(buffer);
+            } finally {
+                raf.close();  // the mapping stays valid
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private LibraryIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        lastScan = buffer.getLong(8);
+        server = string(buffer.getInt(16), buffer.getInt(20));
+        entryCount = buffer.getInt(24);
+        entriesOffset = buffer.getInt(28);
+        trigramCount = buffer.getInt(32);
+        trigramsOffset = buffer.getInt(36);
+    }
+
+    public static String categoryName(int category) {
+        return CATEGORY_NAMES[category];
+    }
+
+    // The server's lastscan when the index was built.
+    public long getLastScan() {
+        return lastScan;
+    }
+
+    // Which server the index is of.
+    public String getServer() {
+        return server;
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    // Adds up to limit matches, in name order, to the lists.  Returns the
+    // number added.
+    public int search(String query, int limit,
+            List<String> categories, List<String> ids, List<String> names) {
+        byte[] q = normalize(query);
+        if (q.length == 0 || limit <= 0) return 0;
+        if (q.length < 3) {
+            return searchPrefix(q, limit, categories, ids, names);
+        }
+
+        // Look up the postings of each distinct trigram of the query,
+        // then walk the shortest list checking the others.
+        int[] trigrams = trigrams(q, 0, q.length, new int[q.length - 2]);
+        int distinct = sortUnique(trigrams, trigrams.length);
+        int[] postingsStart = new int[distinct];
+        int[] postingsCount = new int[distinct];
+        int shortest = 0;
+        for (int i = 0; i < distinct; i++) {
+            int slot = findTrigram(trigrams[i]);
+            if (slot < 0) return 0;
+            int base = trigramsOffset + slot * TRIGRAM_INTS * 4;
+            postingsStart[i] = buffer.getInt(base + 4);
+            postingsCount[i] = buffer.getInt(base + 8);
+            if (postingsCount[i] < postingsCount[shortest]) shortest = i;
+        }
+
+        int found = 0;
+        for (int p = 0; p < postingsCount[shortest] && found < limit; p++) {
+            int entry = buffer.getInt(postingsStart[shortest] + p * 4);
+            boolean inAll = true;
+            for (int i = 0; i < distinct && inAll; i++) {
+                if (i != shortest) {
+                    inAll = containsPosting(postingsStart[i], postingsCount[i], entry);
+                }
+            }
+            if (inAll && normalizedContains(entry, q)) {
+                addEntry(entry, categories, ids, names);
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private int searchPrefix(byte[] q, int limit,
+            List<String> categories, List<String> ids, List<String> names) {
+        // Lower bound of q among the normalized names.
+        int lo = 0;
+        int hi = entryCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareNormalized(mid, q) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int found = 0;
+        for (int entry = lo; entry < entryCount && found < limit; entry++) {
+            if (!normalizedStartsWith(entry, q)) break;
+            addEntry(entry, categories, ids, names);
+            found++;
+        }
+        return found;
+    }
+
+    private int entryInt(int entry, int field) {
+        return buffer.getInt(entriesOffset + (entry * ENTRY_INTS + field) * 4);
+    }
+
+    private void addEntry(int entry, List<String> categories, List<String> ids, List<String> names) {
+        categories.add(CATEGORY_NAMES[entryInt(entry, 0)]);
+        ids.add(string(entryInt(entry, 1), entryInt(entry, 2)));
+        names.add(string(entryInt(entry, 3), entryInt(entry, 4)));
+    }
+
+    // Compares the normalized name of entry with q, as unsigned bytes.
+    private int compareNormalized(int entry, byte[] q) {
+        int offset = entryInt(entry, 5);
+        int length = entryInt(entry, 6);
+        int n = Math.min(length, q.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (buffer.get(offset + i) & 0xff) - (q[i] & 0xff);
+            if (diff != 0) return diff;
+        }
+        return length - q.length;
+    }
+
+    private boolean normalizedStartsWith(int entry, byte[] q) {
+        if (entryInt(entry, 6) < q.length) return false;
+        int offset = entryInt(entry, 5);
+        for (int i = 0; i < q.length; i++) {
+            if (buffer.get(offset + i) != q[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean normalizedContains(int entry, byte[] q) {
+        int offset = entryInt(entry, 5);
+        int last = offset + entryInt(entry, 6) - q.length;
+        outer:
+        for (int start = offset; start <= last; start++) {
+            for (int i = 0; i < q.length; i++) {
+                if (buffer.get(start + i) != q[i]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private int findTrigram(int trigram) {
+        int lo = 0;
+        int hi = trigramCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = buffer.getInt(trigramsOffset + mid * TRIGRAM_INTS * 4);
+            if (value < trigram) {
+                lo = mid + 1;
+            } else if (value > trigram) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private boolean containsPosting(int start, int count, int entry) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = buffer.getInt(start + mid * 4);
+            if (value < entry) {
+                lo = mid + 1;
+            } else if (value > entry) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return utf8String(bytes, 0, length);
+    }
+
+    // Lower-cased UTF-8.  Character.toLowerCase, unlike
+    // String.toLowerCase, doesn't depend on the default locale.
+    static byte[] normalize(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return utf8Bytes(new String(chars));
+    }
+
+    // Fills out with the byte trigrams of bytes[from, to).  Returns out.
+    static int[] trigrams(byte[] bytes, int from, int to, int[] out) {
+        for (int i = from; i + 2 < to; i++) {
+            out[i - from] = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 |
+                (bytes[i + 2] & 0xff);
+        }
+        return out;
+    }
+
+    // Sorts values[0, length) and moves the distinct ones to the front.
+    // Returns how many there are.
+    static int sortUnique(int[] values, int length) {
+        if (length == 0) return 0;
+        Arrays.sort(values, 0, length);
+        int distinct = 1;
+        for (int i = 1; i < length; i++) {
+            if (values[i] != values[distinct - 1]) values[distinct++] = values[i];
+        }
+        return distinct;
+    }
+
+    static byte[] utf8Bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String utf8String(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Accumulates entries in flat arrays (no per-entry objects, as a big
+    // library has 100k+ of them) and writes the index file.
+    public static final class Builder {
+        // Trigram postings are gathered one slice of the trigram space at
+        // a time, so the builder never holds more than about this many.
+        private static final int POSTINGS_PER_PASS = 256 * 1024;
+
+        private final String server;
+        private final long lastScan;
+        private byte[] pool = new byte[64 * 1024];
+        private int poolLength = 0;
+        private int[] entries = new int[ENTRY_INTS * 1024];
+        private int entryCount = 0;
+        private long trigramOccurrences = 0;
+
+        public Builder(String server, long lastScan) {
+            this.server = server;
+            this.lastScan = lastScan;
+        }
+
+        public int size() {
+            return entryCount;
+        }
+
+        public void add(int category, String id, String name) {
+            if (entries.length < (entryCount + 1) * ENTRY_INTS) {
+                int[] grown = new int[entries.length * 2];
+                System.arraycopy(entries, 0, grown, 0, entries.length);
+                entries = grown;
+            }
+            int base = entryCount++ * ENTRY_INTS;
+            byte[] normalized = normalize(name);
+            entries[base] = category;
+            entries[base + 1] = appendToPool(utf8Bytes(id));
+            entries[base + 2] = poolLength - entries[base + 1];
+            entries[base + 3] = appendToPool(utf8Bytes(name));
+            entries[base + 4] = poolLength - entries[base + 3];
+            entries[base + 5] = appendToPool(normalized);
+            entries[base + 6] = normalized.length;
+            trigramOccurrences += Math.max(0, normalized.length - 2);
+        }
+
+        private int appendToPool(byte[] bytes) {
+            if (pool.length < poolLength + bytes.length) {
+                byte[] grown = new byte[Math.max(pool.length * 2, poolLength + bytes.length)];
+                System.arraycopy(pool, 0, grown, 0, poolLength);
+                pool = grown;
+            }
+            System.arraycopy(bytes, 0, pool, poolLength, bytes.length);
+            int offset = poolLength;
+            poolLength += bytes.length;
+            return offset;
+        }
+
+        // Blocking and CPU heavy; call off the CLI threads.  Writes to a
+        // temporary file first, so readers of the old index never see a
+        // half-written one.
+        public void write(File file) throws IOException {
+            int[] order = sortedOrder();
+            int serverOffset = appendToPool(utf8Bytes(server));
+            int serverLength = poolLength - serverOffset;
+
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            int trigramCount;
+            int entriesOffset;
+            int trigramsOffset;
+            try {
+                for (int i = 0; i < HEADER_BYTES; i++) out.write(0);
+                out.write(pool, 0, poolLength);
+
+                // Postings, slice by slice of the 24-bit trigram space;
+                // the table of trigrams is collected as we go.
+                int[] table = new int[TRIGRAM_INTS * 1024];
+                trigramCount = 0;
+                int passes = (int) (trigramOccurrences / POSTINGS_PER_PASS) + 1;
+                int sliceSize = ((1 << 24) + passes - 1) / passes;
+                int[] scratch = new int[64];
+                for (int pass = 0; pass < passes; pass++) {
+                    long[] postings = slicePostings(order, pass * sliceSize,
+                            (pass + 1) * sliceSize, scratch);
+                    Arrays.sort(postings);
+                    for (int i = 0; i < postings.length; ) {
+                        int trigram = (int) (postings[i] >>> 32);
+                        int start = out.size();
+                        int count = 0;
+                        for (; i < postings.length && (int) (postings[i] >>> 32) == trigram; i++) {
+                            out.writeInt((int) postings[i]);
+                            count++;
+                        }
+                        if (table.length < (trigramCount + 1) * TRIGRAM_INTS) {
+                            int[] grown = new int[table.length * 2];
+                            System.arraycopy(table, 0, grown, 0, table.length);
+                            table = grown;
+                        }
+                        table[trigramCount * TRIGRAM_INTS] = trigram;
+                        table[trigramCount * TRIGRAM_INTS + 1] = start;
+                        table[trigramCount * TRIGRAM_INTS + 2] = count;
+                        trigramCount++;
+                    }
+                }
+
+                entriesOffset = out.size();
+                for (int i = 0; i < entryCount; i++) {
+                    int base = order[i] * ENTRY_INTS;
+                    out.writeInt(entries[base]);
+                    for (int field = 1; field < ENTRY_INTS; field += 2) {
+                        out.writeInt(entries[base + field] + HEADER_BYTES);
+                        out.writeInt(entries[base + field + 1]);
+                    }
+                }
+
+                trigramsOffset = out.size();
+                for (int i = 0; i < trigramCount * TRIGRAM_INTS; i++) {
+                    out.writeInt(table[i]);
+                }
+            } finally {
+                out.close();
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(lastScan);
+                raf.writeInt(serverOffset + HEADER_BYTES);
+                raf.writeInt(serverLength);
+                raf.writeInt(entryCount);
+                raf.writeInt(entriesOffset);
+                raf.writeInt(trigramCount);
+                raf.writeInt(trigramsOffset);
+            } finally {
+                raf.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Couldn't rename " + tmp + " to " + file);
+            }
+        }
+
+        // (trigram << 32 | sorted entry index) for each distinct trigram of
+        // each entry that falls in [from, to).
+        private long[] slicePostings(int[] order, int from, int to, int[] scratch) {
+            long[] postings = new long[1024];
+            int count = 0;
+            for (int i = 0; i < entryCount; i++) {
+                int base = order[i] * ENTRY_INTS;
+                int offset = entries[base + 5];
+                int length = entries[base + 6];
+                if (length < 3) continue;
+                if (scratch.length < length) scratch = new int[length * 2];
+                int distinct = sortUnique(trigrams(pool, offset, offset + length, scratch),
+                        length - 2);
+                for (int t = 0; t < distinct; t++) {
+                    if (scratch[t] < from || scratch[t] >= to) continue;
+                    if (count == postings.length) {
+                        long[] grown = new long[postings.length * 2];
+                        System.arraycopy(postings, 0, grown, 0, count);
+                        postings = grown;
+                    }
+                    postings[count++] = (long) scratch[t] << 32 | i;
+                }
+            }
+            long[] result = new long[count];
+            System.arraycopy(postings, 0, result, 0, count);
+            return result;
+        }
+
+        // Entry indices in order of normalized name (unsigned bytes), by a
+        // merge sort over ints so no Comparator boxing is needed.
+        private int[] sortedOrder() {
+            int[] order = new int[entryCount];
+            for (int i = 0; i < entryCount; i++) order[i] = i;
+            int[] tmp = new int[entryCount];
+            for (int width = 1; width < entryCount; width *= 2) {
+                for (int lo = 0; lo < entryCount; lo += 2 * width) {
+                    int mid = Math.min(lo + width, entryCount);
+                    int hi = Math.min(lo + 2 * width, entryCount);
+                    int a = lo, b = mid, k = lo;
+                    while (a < mid && b < hi) {
+                        tmp[k++] = compare(order[b], order[a]) < 0 ? order[b++] : order[a++];
+                    }
+                    while (a < mid) tmp[k++] = order[a++];
+                    while (b < hi) tmp[k++] = order[b++];
+                }
+                int[] swap = order;
+                order = tmp;
+                tmp = swap;
+            }
+            return order;
+        }
+
+        private int compare(int entryA, int entryB) {
+            int offsetA = entries[entryA * ENTRY_INTS + 5];
+            int lengthA = entries[entryA * ENTRY_INTS + 6];
+            int offsetB = entries[entryB * ENTRY_INTS + 5];
+            int lengthB = entries[entryB * ENTRY_INTS + 6];
+            int n = Math.min(lengthA, lengthB);
+            for (int i = 0; i < n; i++) {
+                int diff = (pool[offsetA + i] & 0xff) - (pool[offsetB + i] & 0xff);
+                if (diff != 0) return diff;
+            }
+            return lengthA - lengthB;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.danga.squeezer;
+
+// Keeps the on-device LibraryIndex in step with one server.  The server's
+// lastscan timestamp (from "serverstatus") says whether the index is
+// current; if it isn't, the artists, albums and titles listings are paged
+// through one PAGE_SIZE request at a time, so the sync trickles along
+// between the commands the user is waiting on, and the finished Builder
+// is handed over to be written out.
+public class LibrarySync {
+    private static final int PAGE_SIZE = 500;
+
+    private static final String[] COMMANDS = { "artists", "albums", "titles" };
+    private static final int[] CATEGORIES = {
+        LibraryIndex.ARTISTS, LibraryIndex.ALBUMS, LibraryIndex.TITLES };
+
+    private final String server;
+
+    // Guarded by this:
+    private LibraryIndex.Builder builder;  // non-null while syncing
+    private int step;  // index into COMMANDS
+    private int requestedStart;
+    private boolean awaiting;  // requestedStart's reply hasn't come yet
+    private long lastScan;
+    private LibraryIndex.Builder completed;
+
+    public LibrarySync(String server) {
+        this.server = server;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    // Returns the first request to send if the index needs rebuilding, or
+    // null.  A rescan finishing mid-sync starts the sync over.
+    public synchronized String onServerStatus(LibraryIndex current, long lastScan) {
+        if (builder != null) {
+            if (this.lastScan == lastScan) return null;
+        } else if (current != null && current.getServer().equals(server) &&
+                   current.getLastScan() == lastScan) {
+            return null;
+        }
+        builder = new LibraryIndex.Builder(server, lastScan);
+        step = 0;
+        this.lastScan = lastScan;
+        return request(0);
+    }
+
+    public synchronized boolean isSyncing() {
+        return builder != null;
+    }
+
+    // True if a listing reply is the one to our outstanding request, rather
+    // than to a browse request (which may even have the same page size).
+    // If both asked for the same page, we take the first reply.
+    public synchronized boolean isAwaiting(String command, int start, int pageSize) {
+        return awaiting && COMMANDS[step].equals(command) &&
+            start == requestedStart && pageSize == PAGE_SIZE;
+    }
+
+    // Called from the ListeningThread with a reply to one of our requests.
+    // Returns the next request to send, or null if there's none (the sync
+    // finished, or the reply was stale).
+    public synchronized String onPageReceived(String command, int start,
+            String[] ids, String[] names, int total) {
+        if (builder == null || !COMMANDS[step].equals(command) ||
+            start != requestedStart) {
+            return null;
+        }
+        awaiting = false;
+        for (int i = 0; i < ids.length; i++) {
+            builder.add(CATEGORIES[step], ids[i], names[i]);
+        }
+        int next = start + ids.length;
+        if (ids.length > 0 && next < total) {
+            return request(next);
+        }
+        if (++step < COMMANDS.length) {
+            return request(0);
+        }
+        completed = builder;
+        builder = null;
+        return null;
+    }
+
+    // Returns the finished builder once, or null.
+    public synchronized LibraryIndex.Builder takeCompleted() {
+        LibraryIndex.Builder result = completed;
+        completed = null;
+        return result;
+    }
+
+    private String request(int start) {
+        requestedStart = start;
+        awaiting = true;
+        return COMMANDS[step] + " " + start + " " + PAGE_SIZE;
+    }
+}
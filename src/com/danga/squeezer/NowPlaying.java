@@ -0,0 +1,137 @@
+package com.danga.squeezer;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+// Everything the now-playing screen shows, read from one PlayerState
+// snapshot and handed over in one binder call (getNowPlaying), so the
+// fields always belong together.  The service numbers each distinct one;
+// a client passing back the version it has gets null if nothing changed.
+//
+// The song position travels as a clock (see PlayerState.Snapshot), so a
+// client can keep extrapolating it without asking again.
+// SystemClock.elapsedRealtime() is the same in every process.
+public final class NowPlaying implements Parcelable {
+    public static final NowPlaying EMPTY =
+        new NowPlaying(0, "", "", "", PlayerState.Snapshot.EMPTY);
+
+    private final int version;
+    private final String playerId;
+    private final String playerName;
+    private final String albumArtUrl;
+    private final PlayerState.Snapshot snapshot;
+
+    public NowPlaying(int version, String playerId, String playerName, String albumArtUrl,
+            PlayerState.Snapshot snapshot) {
+        this.version = version;
+        this.playerId = Util.nonNullString(playerId);
+        this.playerName = Util.nonNullString(playerName);
+        this.albumArtUrl = Util.nonNullString(albumArtUrl);
+        this.snapshot = snapshot;
+    }
+
+    // 0 for EMPTY; otherwise increases with every change.
+    public int getVersion() {
+        return version;
+    }
+
+    // True if this shows the same things as other, whatever the versions.
+    public boolean sameAs(String playerId, String playerName, String albumArtUrl,
+            PlayerState.Snapshot snapshot) {
+        return this.snapshot == snapshot &&
+            this.playerId.equals(Util.nonNullString(playerId)) &&
+            this.playerName.equals(Util.nonNullString(playerName)) &&
+            this.albumArtUrl.equals(Util.nonNullString(albumArtUrl));
+    }
+
+    // Never null: empty strings when unknown.
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public String getPlayerName() {
+        return playerName;
+    }
+
+    public String getSong() {
+        return Util.nonNullString(snapshot.getSong());
+    }
+
+    public String getArtist() {
+        return Util.nonNullString(snapshot.getArtist());
+    }
+
+    public String getAlbum() {
+        return Util.nonNullString(snapshot.getAlbum());
+    }
+
+    // Key for AlbumArtCache; see ISqueezeService.currentArtworkTrackId().
+    public String getArtworkTrackId() {
+        return Util.nonNullString(snapshot.getArtworkTrackId());
+    }
+
+    public String getAlbumArtUrl() {
+        return albumArtUrl;
+    }
+
+    public boolean isPlaying() {
+        return snapshot.isPlaying();
+    }
+
+    // Where the song is at the given SystemClock.elapsedRealtime().
+    public int getSecondsElapsed(long now) {
+        return snapshot.getSecondsElapsed(now);
+    }
+
+    public int getSecondsTotal() {
+        return snapshot.getSongDuration();
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        long now = SystemClock.elapsedRealtime();
+        out.writeInt(version);
+        out.writeString(playerId);
+        out.writeString(playerName);
+        out.writeString(albumArtUrl);
+        out.writeString(snapshot.getSong());
+        out.writeString(snapshot.getArtist());
+        out.writeString(snapshot.getAlbum());
+        out.writeString(snapshot.getArtworkTrackId());
+        out.writeInt(snapshot.getMillisElapsed(now));
+        out.writeLong(now);
+        out.writeInt(snapshot.getRate());
+        out.writeInt(snapshot.getSongDuration());
+        out.writeInt(snapshot.isPlaying() ? 1 : 0);
+    }
+
+    public static final Parcelable.Creator<NowPlaying> CREATOR =
+        new Parcelable.Creator<NowPlaying>() {
+        public NowPlaying createFromParcel(Parcel in) {
+            int version = in.readInt();
+            String playerId = in.readString();
+            String playerName = in.readString();
+            String albumArtUrl = in.readString();
+            String song = in.readString();
+            String artist = in.readString();
+            String album = in.readString();
+            String artworkTrackId = in.readString();
+            int timeMillis = in.readInt();
+            long timeBase = in.readLong();
+            int rate = in.readInt();
+            int songDuration = in.readInt();
+            boolean playing = in.readInt() != 0;
+            return new NowPlaying(version, playerId, playerName, albumArtUrl,
+                    new PlayerState.Snapshot(song, artist, album, artworkTrackId,
+                            timeMillis, timeBase, rate, songDuration, playing));
+        }
+
+        public NowPlaying[] newArray(int size) {
+            return new NowPlaying[size];
+        }
+    };
+}
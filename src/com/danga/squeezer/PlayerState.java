@@ -1,16 +1,316 @@
 package com.danga.squeezer;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicReference;
 
+import android.os.SystemClock;
+
+// Holds the latest known state of one player as an immutable Snapshot.
+// The parser builds up a status line's changes in locals and publishes a
+// new Snapshot at most once per line, so readers (the ISqueezeService stub,
+// on binder threads) always see a consistent song/time/mode combination
+// with a single volatile read and no allocation.
 public class PlayerState {
 
-    private final AtomicReference<String> currentSong = new AtomicReference<String>();
-    private final AtomicReference<String> currentArtist = new AtomicReference<String>();
-    private final AtomicReference<String> currentAlbum = new AtomicReference<String>();
-    private final AtomicReference<String> currentArtworkTrackId = new AtomicReference<String>();
-    private final AtomicReference<Integer> currentTimeSecond = new AtomicReference<Integer>();
-    private final AtomicReference<Integer> currentSongDuration = new AtomicReference<Integer>();
-    private final AtomicBoolean isPlaying = new AtomicBoolean(false);
+    public static final class Snapshot {
+        public static final Snapshot EMPTY =
+            new Snapshot(null, null, null, null, 0, 0, 1, 0, false);
+
+        // How far apart two clocks can be and still show the same time.
+        private static final int CLOCK_TOLERANCE_MS = 1000;
+
+        private final String song;
+        private final String artist;
+        private final String album;
+        private final String artworkTrackId;
+
+        // The song position is a clock: timeMillis into the song as of
+        // SystemClock.elapsedRealtime() == timeBase, advancing at rate
+        // while playing.  So readers can extrapolate it between the
+        // server's (now infrequent) status updates.
+        private final int timeMillis;
+        private final long timeBase;
+        private final int rate;
+        private final int songDuration;
+        private final boolean playing;
+
+        public Snapshot(String song, String artist, String album, String artworkTrackId,
+                int timeMillis, long timeBase, int rate, int songDuration, boolean playing) {
+            this.song = song;
+            this.artist = artist;
+            this.album = album;
+            this.artworkTrackId = artworkTrackId;
+            this.timeMillis = timeMillis;
+            this.timeBase = timeBase;
+            this.rate = rate;
+            this.songDuration = songDuration;
+            this.playing = playing;
+        }
+
+        // May return null if unknown.
+        public String getSong() {
+            return song;
+        }
+
+        public String getArtist() {
+            return artist;
+        }
+
+        public String getAlbum() {
+            return album;
+        }
+
+        public String getArtworkTrackId() {
+            return artworkTrackId;
+        }
+
+        // Where the song is at the given SystemClock.elapsedRealtime().
+        public int getMillisElapsed(long now) {
+            if (!playing || now <= timeBase) return timeMillis;
+            long millis = timeMillis + (now - timeBase) * rate;
+            if (songDuration > 0 && millis > songDuration * 1000L) {
+                // Past the end; the newsong notification must be on its way.
+                return songDuration * 1000;
+            }
+            return millis < 0 ? 0 : (int) millis;
+        }
+
+        public int getSecondsElapsed(long now) {
+            return getMillisElapsed(now) / 1000;
+        }
+
+        public int getRate() {
+            return rate;
+        }
+
+        public int getSongDuration() {
+            return songDuration;
+        }
+
+        public boolean isPlaying() {
+            return playing;
+        }
+
+        // Pausing freezes the clock where it is; playing restarts it from there.
+        public Snapshot withPlaying(boolean playing, long now) {
+            if (this.playing == playing) return this;
+            return new Snapshot(song, artist, album, artworkTrackId,
+                    getMillisElapsed(now), now, rate, songDuration, playing);
+        }
+
+        // A new song starts from the top.
+        public Snapshot withSong(String song, long now) {
+            return new Snapshot(song, artist, album, artworkTrackId,
+                    0, now, rate, songDuration, playing);
+        }
+
+        // True if other is about the same song; the clock doesn't count.
+        public boolean sameSong(Snapshot other) {
+            return stringEquals(song, other.song) &&
+                stringEquals(artist, other.artist) &&
+                stringEquals(album, other.album) &&
+                stringEquals(artworkTrackId, other.artworkTrackId);
+        }
+
+        // True if other shows the same as this one at now: the same song,
+        // mode, rate and duration, and a clock within CLOCK_TOLERANCE_MS.
+        // The server re-anchors the clock on every status line, so equals()
+        // would almost never hold.
+        public boolean sameAs(Snapshot other, long now) {
+            return playing == other.playing &&
+                rate == other.rate &&
+                songDuration == other.songDuration &&
+                sameSong(other) &&
+                Math.abs(getMillisElapsed(now) - other.getMillisElapsed(now)) <= CLOCK_TOLERANCE_MS;
+        }
+
+        // For PlayerStateStore.  The song clock is saved against the wall
+        // clock, as SystemClock.elapsedRealtime() restarts at boot.
+        void writeTo(DataOutputStream out, long now, long wallNow) throws IOException {
+            writeString(out, song);
+            writeString(out, artist);
+            writeString(out, album);
+            writeString(out, artworkTrackId);
+            out.writeInt(getMillisElapsed(now));
+            out.writeLong(wallNow);
+            out.writeInt(rate);
+            out.writeInt(songDuration);
+            out.writeBoolean(playing);
+        }
+
+        static Snapshot readFrom(DataInputStream in, long now, long wallNow) throws IOException {
+            String song = readString(in);
+            String artist = readString(in);
+            String album = readString(in);
+            String artworkTrackId = readString(in);
+            int timeMillis = in.readInt();
+            long savedAt = in.readLong();
+            int rate = in.readInt();
+            int songDuration = in.readInt();
+            boolean playing = in.readBoolean();
+            Snapshot saved = new Snapshot(song, artist, album, artworkTrackId,
+                    timeMillis, now - Math.max(0, wallNow - savedAt), rate, songDuration, playing);
+            // Re-anchor the clock to now, so it's right even if it has
+            // run past the end.
+            return new Snapshot(song, artist, album, artworkTrackId,
+                    saved.getMillisElapsed(now), now, rate, songDuration, playing);
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) out.writeUTF(s);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof Snapshot)) return false;
+            Snapshot other = (Snapshot) o;
+            return timeMillis == other.timeMillis &&
+                timeBase == other.timeBase &&
+                rate == other.rate &&
+                songDuration == other.songDuration &&
+                playing == other.playing &&
+                stringEquals(song, other.song) &&
+                stringEquals(artist, other.artist) &&
+                stringEquals(album, other.album) &&
+                stringEquals(artworkTrackId, other.artworkTrackId);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = timeMillis;
+            h = h * 31 + songDuration;
+            h = h * 31 + (playing ? 1 : 0);
+            h = h * 31 + (song == null ? 0 : song.hashCode());
+            h = h * 31 + (artist == null ? 0 : artist.hashCode());
+            h = h * 31 + (album == null ? 0 : album.hashCode());
+            return h;
+        }
+    }
+
+    // How long a local play/pause wins over contradicting server updates
+    // (which may have been in flight before the server saw our command).
+    private static final long LOCAL_CHANGE_WINDOW_MS = 2000;
+
+    private static final class LocalTransition {
+        final boolean playing;
+        final long time;
+
+        LocalTransition(boolean playing, long time) {
+            this.playing = playing;
+            this.time = time;
+        }
+    }
+
+    private final String playerId;
+    private final AtomicReference<Snapshot> snapshot =
+        new AtomicReference<Snapshot>(Snapshot.EMPTY);
+
+    // The snapshot we were restored with from PlayerStateStore, if any.
+    // Shown until the server tells us better, but doesn't count as known.
+    private volatile Snapshot restored;
+
+    // The latest play/pause we issued ourselves and haven't seen echoed
+    // back yet, or null.  Each one is a new object, so clearing it by
+    // compareAndSet never clears a newer one.
+    private final AtomicReference<LocalTransition> pendingTransition =
+        new AtomicReference<LocalTransition>();
+
+    public PlayerState(String playerId) {
+        this.playerId = playerId;
+    }
+
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public Snapshot get() {
+        return snapshot.get();
+    }
+
+    // Publishes a new snapshot built by the caller from the one returned
+    // by get().  Returns false (and publishes nothing) if another writer
+    // got there first; callers re-read and retry.
+    public boolean publish(Snapshot expected, Snapshot newSnapshot) {
+        return snapshot.compareAndSet(expected, newSnapshot);
+    }
+
+    public boolean isPlaying() {
+        return snapshot.get().isPlaying();
+    }
+
+    // True until the first status line for this player has been parsed.
+    public boolean isUnknown() {
+        return isPlaceholder(snapshot.get());
+    }
+
+    // True for what's shown before the first status line: EMPTY, or the
+    // snapshot we were restored with.  The first status line must replace
+    // it even if it says the same thing.
+    public boolean isPlaceholder(Snapshot s) {
+        return s == Snapshot.EMPTY || s == restored;
+    }
+
+    // Starts from a saved snapshot, unless something newer already arrived.
+    public void restore(Snapshot saved) {
+        restored = saved;
+        if (!snapshot.compareAndSet(Snapshot.EMPTY, saved)) restored = null;
+    }
+
+    // Returns true if the playing state changed.
+    public boolean setPlaying(boolean playing) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current.isPlaying() == playing) return false;
+            Snapshot updated = current.withPlaying(playing, SystemClock.elapsedRealtime());
+            if (snapshot.compareAndSet(current, updated)) return true;
+        }
+    }
+
+    // For play/pause initiated here: applies it right away and remembers it,
+    // so acceptServerPlaying() can ignore stale updates for a while.
+    // Returns true if the playing state changed.
+    public boolean setPlayingLocally(boolean playing) {
+        pendingTransition.set(new LocalTransition(playing, SystemClock.elapsedRealtime()));
+        return setPlaying(playing);
+    }
+
+    // Decides whether a play/pause state reported by the server should be
+    // applied.  Agreeing with our latest local transition means that's been
+    // echoed back, ending its window; contradicting it within the window
+    // means the update predates our command, so it's dropped.
+    public boolean acceptServerPlaying(boolean playing) {
+        LocalTransition pending = pendingTransition.get();
+        if (pending == null) return true;
+        if (pending.playing == playing) {
+            pendingTransition.compareAndSet(pending, null);
+            return true;
+        }
+        if (SystemClock.elapsedRealtime() - pending.time < LOCAL_CHANGE_WINDOW_MS) {
+            return false;
+        }
+        pendingTransition.compareAndSet(pending, null);
+        return true;
+    }
+
+    // Returns true if the song title changed.
+    public boolean setSong(String song) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (stringEquals(song, current.getSong())) return false;
+            Snapshot updated = current.withSong(song, SystemClock.elapsedRealtime());
+            if (snapshot.compareAndSet(current, updated)) return true;
+        }
+    }
 
+    private static boolean stringEquals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
 }
@@ -0,0 +1,140 @@
+package com.danga.squeezer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Keeps the last known PlayerState.Snapshot of every player on disk, so
+// a freshly started service can show what was playing before the server
+// has said a word.  The file is small (a few hundred bytes per player) and
+// is rewritten whole, off-thread, only when some player's song changes:
+// positions and play/pause go stale in between, which is fine for a
+// placeholder.
+//
+// Format: MAGIC, VERSION, player count, then per player its ID and a
+// Snapshot (see Snapshot.writeTo).
+public class PlayerStateStore {
+    private static final String TAG = "PlayerStateStore";
+    private static final int MAGIC = 0x53515053;  // "SQPS"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final ExecutorService executor;
+
+    // Guarded by this: the latest snapshot of every player, as saved or
+    // about to be.
+    private final Map<String, PlayerState.Snapshot> snapshots =
+        new HashMap<String, PlayerState.Snapshot>();
+
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+
+    public PlayerStateStore(File file, ExecutorService executor) {
+        this.file = file;
+        this.executor = executor;
+    }
+
+    // Blocking, but cheap.  Reads what's there, possibly nothing; a bad
+    // file is ignored (and overwritten by the next save).
+    public synchronized void load() {
+        long now = SystemClock.elapsedRealtime();
+        long wallNow = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 4096));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.v(TAG, "Ignoring " + file + ": wrong format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String playerId = in.readUTF();
+                snapshots.put(playerId, PlayerState.Snapshot.readFrom(in, now, wallNow));
+            }
+            Log.v(TAG, "Loaded " + count + " players in "
+                  + (SystemClock.elapsedRealtime() - now) + "ms");
+        } catch (FileNotFoundException e) {
+            // First run.
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + file + ": " + e);
+            snapshots.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    // The latest snapshot of every player: what was loaded, updated by
+    // every song change since.
+    public synchronized Map<String, PlayerState.Snapshot> snapshots() {
+        return new HashMap<String, PlayerState.Snapshot>(snapshots);
+    }
+
+    // Called whenever a player's snapshot changes.  Schedules a save if
+    // it's now on a different song than what was last saved for it.
+    public void onSnapshotChanged(String playerId, PlayerState.Snapshot snapshot) {
+        if (snapshot == PlayerState.Snapshot.EMPTY) return;
+        synchronized (this) {
+            PlayerState.Snapshot saved = snapshots.get(playerId);
+            if (saved != null && saved.sameSong(snapshot)) return;
+            snapshots.put(playerId, snapshot);
+        }
+        if (!saveScheduled.compareAndSet(false, true)) return;
+        executor.execute(new Runnable() {
+            public void run() {
+                saveScheduled.set(false);
+                save();
+            }
+        });
+    }
+
+    private void save() {
+        long now = SystemClock.elapsedRealtime();
+        long wallNow = System.currentTimeMillis();
+        Map<String, PlayerState.Snapshot> toSave;
+        synchronized (this) {
+            toSave = new HashMap<String, PlayerState.Snapshot>(snapshots);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 4096));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(toSave.size());
+            for (Map.Entry<String, PlayerState.Snapshot> entry : toSave.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out, now, wallNow);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) throw new IOException("rename failed");
+            Log.v(TAG, "Saved " + toSave.size() + " players in "
+                  + (SystemClock.elapsedRealtime() - now) + "ms");
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + file + ": " + e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+}
@@ -24,6 +24,8 @@ public final class Preferences {
 	
 	// The playerId that we were last connected to. e.g. "00:04:20:17:04:7f"
     public static final String KEY_LASTPLAYER = "squeezer.lastplayer";
+    // ...and its name, so it can be shown before the player list is in.
+    public static final String KEY_LASTPLAYER_NAME = "squeezer.lastplayername";
 
     public static final String KEY_AUTO_DISCOVER = "squeezer.autodiscover";
     public static final String KEY_AUTO_CONNECT = "squeezer.autoconnect";
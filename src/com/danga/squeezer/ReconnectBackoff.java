@@ -0,0 +1,36 @@
+package com.danga.squeezer;
+
+import java.util.Random;
+
+// How long to wait before each attempt to get a lost connection back.
+// The delay doubles per failed attempt, from BASE_DELAY_MS up to
+// MAX_DELAY_MS, and each one is jittered to between half and all of that,
+// so a houseful of phones coming back from the same WiFi blip doesn't
+// hammer the server in lockstep.  After MAX_ATTEMPTS we give up until
+// something (a connectivity change, the user) calls reset().
+public class ReconnectBackoff {
+    private static final long BASE_DELAY_MS = 250;
+    private static final long MAX_DELAY_MS = 60000;
+    private static final int MAX_ATTEMPTS = 15;
+
+    private final Random random = new Random();
+
+    // Guarded by this:
+    private int attempts = 0;
+
+    // Returns the delay before the next attempt, or -1 to give up.
+    public synchronized long nextDelayMs() {
+        if (attempts >= MAX_ATTEMPTS) return -1;
+        long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << attempts);
+        attempts++;
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    public synchronized void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,184 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Finds SqueezeCenter servers on the local network the way SqueezeBoxes
+// do: a UDP broadcast to port 3483 asking for the server's name and CLI
+// port, answered by every server that hears it.
+//
+// Probes go to all the given broadcast addresses at once, and are repeated
+// a few times within the WINDOW_MS collection window in case one gets
+// lost; replies are collected on the same socket in between.  The servers
+// found are cached for TTL_MS, so asking again soon after costs nothing.
+// Each refresh replaces the cache: a server that doesn't answer is gone,
+// however recently it was seen.
+public class ServerDiscovery {
+    private static final String TAG = "ServerDiscovery";
+    public static final int PORT = 3483;
+    private static final int DEFAULT_CLI_PORT = 9090;
+
+    private static final long TTL_MS = 5 * 60 * 1000;
+    private static final int WINDOW_MS = 1500;
+    private static final int PROBES = 3;
+
+    // 'e', then the tags we want back, each with a zero length.
+    private static final String PROBE = "eNAME\0CLIP\0IPAD\0";
+
+    public static final class Server {
+        public final String hostPort;  // of the CLI, e.g. "10.0.0.5:9090"
+        public final String name;
+        final long seenAt;
+
+        Server(String hostPort, String name, long seenAt) {
+            this.hostPort = hostPort;
+            this.name = name;
+            this.seenAt = seenAt;
+        }
+    }
+
+    private final int port;
+
+    // Guarded by this:
+    private final Map<String, Server> servers = new LinkedHashMap<String, Server>();
+    private long lastRefresh = 0;
+
+    public ServerDiscovery(int port) {
+        this.port = port;
+    }
+
+    // True if a refresh() happened within the last TTL_MS.
+    public synchronized boolean isFresh() {
+        return lastRefresh != 0 && SystemClock.elapsedRealtime() - lastRefresh < TTL_MS;
+    }
+
+    // The servers seen within the last TTL_MS, in the order they first
+    // answered.
+    public synchronized List<Server> getServers() {
+        long now = SystemClock.elapsedRealtime();
+        List<Server> result = new ArrayList<Server>(servers.size());
+        for (Iterator<Server> it = servers.values().iterator(); it.hasNext();) {
+            Server server = it.next();
+            if (now - server.seenAt >= TTL_MS) {
+                it.remove();
+            } else {
+                result.add(server);
+            }
+        }
+        return result;
+    }
+
+    // Blocking, for up to WINDOW_MS.  Probes the given broadcast addresses
+    // and returns the servers that answered, which are now the ones known.
+    public List<Server> refresh(List<InetAddress> broadcastAddresses) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        long deadline = start + WINDOW_MS;
+        long probeInterval = WINDOW_MS / PROBES;
+        long nextProbe = start;
+        int probesSent = 0;
+        int replies = 0;
+
+        Map<String, Server> found = new LinkedHashMap<String, Server>();
+        byte[] probe = PROBE.getBytes("ISO-8859-1");
+        byte[] buffer = new byte[1500];
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setBroadcast(true);
+            long now;
+            while ((now = SystemClock.elapsedRealtime()) < deadline) {
+                if (probesSent < PROBES && now >= nextProbe) {
+                    for (InetAddress address : broadcastAddresses) {
+                        try {
+                            socket.send(new DatagramPacket(probe, probe.length, address, port));
+                        } catch (IOException e) {
+                            Log.v(TAG, "Probe to " + address + " failed: " + e);
+                        }
+                    }
+                    probesSent++;
+                    nextProbe = now + probeInterval;
+                }
+                long wait = Math.min(deadline, probesSent < PROBES ? nextProbe : deadline) - now;
+                socket.setSoTimeout((int) Math.max(1, wait));
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                Server server = parseResponse(packet.getData(), packet.getLength(),
+                        packet.getAddress(), SystemClock.elapsedRealtime());
+                if (server == null) continue;
+                replies++;
+                if (!found.containsKey(server.hostPort)) found.put(server.hostPort, server);
+            }
+        } finally {
+            socket.close();
+        }
+
+        synchronized (this) {
+            servers.clear();
+            servers.putAll(found);
+            lastRefresh = SystemClock.elapsedRealtime();
+        }
+        List<Server> result = getServers();
+        Log.v(TAG, "Discovery: " + replies + " replies, " + result.size() + " servers in "
+              + (SystemClock.elapsedRealtime() - start) + "ms");
+        return result;
+    }
+
+    // A reply is 'E', then tags: four ASCII bytes, a length byte, and that
+    // many bytes of UTF-8 value.  Returns null if it isn't a reply.
+    static Server parseResponse(byte[] data, int length, InetAddress from, long now) {
+        if (length < 1 || data[0] != 'E') return null;
+        String name = null;
+        String host = from.getHostAddress();
+        int cliPort = DEFAULT_CLI_PORT;
+        int pos = 1;
+        while (pos + 5 <= length) {
+            String tag = ascii(data, pos, 4);
+            int valueLength = data[pos + 4] & 0xff;
+            int valueStart = pos + 5;
+            if (valueStart + valueLength > length) break;
+            String value = utf8(data, valueStart, valueLength);
+            if (tag.equals("NAME")) {
+                name = value;
+            } else if (tag.equals("CLIP")) {
+                int parsed = Util.parseDecimalIntOrZero(value);
+                if (parsed > 0) cliPort = parsed;
+            } else if (tag.equals("IPAD")) {
+                if (value.length() > 0) host = value;
+            }
+            pos = valueStart + valueLength;
+        }
+        if (name == null) name = host;
+        return new Server(host + ":" + cliPort, name, now);
+    }
+
+    private static String ascii(byte[] data, int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (data[offset + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    private static String utf8(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return ascii(data, offset, length);
+        }
+    }
+}
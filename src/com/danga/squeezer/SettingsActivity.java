@@ -39,9 +39,7 @@ public class SettingsActivity extends PreferenceActivity implements
         getPreferenceManager().setSharedPreferencesName(Preferences.NAME);
         addPreferencesFromResource(R.xml.preferences);
 
-        // Both not yet implemented, so disable.  TODO(bradfitz): implement.
-        CheckBoxPreference autoDiscoverPref = (CheckBoxPreference) findPreference(Preferences.KEY_AUTO_DISCOVER);
-        autoDiscoverPref.setEnabled(false);
+        // Not yet implemented, so disable.  TODO(bradfitz): implement.
         CheckBoxPreference autoConnectPref = (CheckBoxPreference) findPreference(Preferences.KEY_AUTO_CONNECT);
         autoConnectPref.setEnabled(false);
 
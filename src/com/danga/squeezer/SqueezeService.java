@@ -1,20 +1,23 @@
 package com.danga.squeezer;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.InetAddress;
 import java.net.SocketTimeoutException;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.Arrays;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -23,12 +26,18 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.DhcpInfo;
+import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class SqueezeService extends Service {
@@ -43,16 +52,152 @@ public class SqueezeService extends Service {
 
     private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 
+    // Blocking connects get their own thread, so commands (which are
+    // flushed from executor) never queue up behind one.
+    private final ExecutorService connectExecutor = Executors.newSingleThreadExecutor();
+
     private final AtomicReference<ConnectionState> connectionState = new AtomicReference<ConnectionState>();
     
     private final AtomicReference<IServiceCallback> callback =
         new AtomicReference<IServiceCallback>();
   
     private boolean debugLogging = false;
+
+    // Only touched from the executor.
+    private int lastTickSeconds = -1;
+    private ScheduledFuture<?> timeTicker;  // guarded by this
+
+    // Only touched from the ListeningThread: the player & playlist position
+    // we last asked for art lookahead for, so each position is asked once.
+    private String lastArtLookahead = null;
+
+    private AlbumArtCache albumArtCache;
+
+    // The last NowPlaying handed out; see getNowPlaying().
+    private final AtomicReference<NowPlaying> lastNowPlaying =
+        new AtomicReference<NowPlaying>(NowPlaying.EMPTY);
+
+    // Every player's last known state, saved on song changes; it seeds
+    // each new connection.
+    private PlayerStateStore playerStateStore;
+
+    // The on-device search index, or null if there's none yet.  Rebuilt by
+    // LibrarySync on indexExecutor, as sorting a big library takes a while.
+    // (indexExecutor also does PlayerStateStore's writes.)
+    private volatile LibraryIndex libraryIndex;
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor();
+
+    // Servers found by UDP broadcast; see ServerDiscovery.  Probing takes a
+    // second or two, so it gets its own thread.
+    private final ServerDiscovery serverDiscovery = new ServerDiscovery(ServerDiscovery.PORT);
+    private final ExecutorService discoveryExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean discovering = new AtomicBoolean(false);
+    private final AtomicBoolean forceDiscovery = new AtomicBoolean(false);
     
+    // Dispatch tables for the raw tokens of player lines.  The order of the
+    // keys must match the ids below.
+    private static final int COMMAND_PLAY = 0;
+    private static final int COMMAND_STOP = 1;
+    private static final int COMMAND_PAUSE = 2;
+    private static final int COMMAND_STATUS = 3;
+    private static final int COMMAND_PLAYLIST = 4;
+    private static final int COMMAND_PREFSET = 5;
+    private static final int COMMAND_CLIENT = 6;
+    private static final int COMMAND_NAME = 7;
+    private static final CliKeyTable PLAYER_COMMANDS = new CliKeyTable(
+            "play", "stop", "pause", "status", "playlist", "prefset", "client", "name");
+
+    // Asks for everything a player's status line shows.  Every status
+    // request uses these tags, so any reply can stand in for the others.
+    private static final String STATUS_REQUEST = "status - 1 tags:ylqwaJ";
+
+    // Lines starting with one of these aren't about a player.
+    private static final CliKeyTable SERVER_COMMANDS = new CliKeyTable(
+            "serverstatus", "rescan", "pref");
+
+    private static final int STATUS_MODE = 0;
+    private static final int STATUS_ARTIST = 1;
+    private static final int STATUS_TITLE = 2;
+    private static final int STATUS_ALBUM = 3;
+    private static final int STATUS_ARTWORK_TRACK_ID = 4;
+    private static final int STATUS_TIME = 5;
+    private static final int STATUS_DURATION = 6;
+    private static final int STATUS_MIXER_VOLUME = 7;
+    private static final int STATUS_RATE = 8;
+    private static final int STATUS_PLAYLIST_CUR_INDEX = 9;
+    private static final int STATUS_PLAYLIST_TRACKS = 10;
+    private static final int STATUS_PLAYLIST_INDEX = 11;
+    private static final CliKeyTable STATUS_KEYS = new CliKeyTable(
+            "mode", "artist", "title", "album", "artwork_track_id", "time", "duration",
+            "mixer%20volume", "rate", "playlist_cur_index", "playlist_tracks",
+            "playlist%20index");
+
+    // Replies to BrowseCache page requests.
+    private static final CliKeyTable BROWSE_COMMANDS = new CliKeyTable(
+            "artists", "albums", "titles", "genres");
+
+    // Players are listed this many at a time.
+    private static final int PLAYER_PAGE_SIZE = 50;
+
+    // How many upcoming playlist entries to prefetch album art for.
+    private static final int ART_LOOKAHEAD_TRACKS = 2;
+
+    // While a client is attached we ask the server for a status this often
+    // (plus whenever something changes), and extrapolate the song position
+    // in between; see PlayerState.Snapshot.  The client gets a locally
+    // generated time update every TIME_TICK_MS.
+    private static final int STATUS_RESYNC_SECONDS = 30;
+    private static final long TIME_TICK_MS = 1000;
+
+    // Getting a lost connection back: see startConnection() and
+    // onConnectionLost().  reconnectHostPort is where we want to be
+    // connected, or null once the user disconnects.
+    private static final long SESSION_RELIST_AFTER_MS = 30000;
+    // How long a new connection's server gets to answer "version ?"
+    // before we take it for not being a CLI; see checkServerAnswers().
+    private static final long SERVER_ANSWER_TIMEOUT_MS = 10000;
+    private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff();
+    private volatile String reconnectHostPort = null;
+    private final AtomicReference<ConnectionState.Session> resumableSession =
+        new AtomicReference<ConnectionState.Session>();
+    private ScheduledFuture<?> reconnectFuture;  // guarded by this
+
+    // Retries straight away when the network comes back, rather than
+    // waiting out the backoff.  And when the network goes away entirely,
+    // doesn't wait for the socket to notice.
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (reconnectHostPort == null) return;
+            ConnectionState connection = connectionState.get();
+            boolean connected = connection != null && connection.isConnected();
+            if (intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                if (connected) {
+                    Log.v(TAG, "Network is gone; dropping the connection.");
+                    onConnectionLost(connection.getConnectionGeneration());
+                }
+                return;
+            }
+            NetworkInfo info = (NetworkInfo) intent.getParcelableExtra(
+                    ConnectivityManager.EXTRA_NETWORK_INFO);
+            if (info == null || !info.isConnected() || connected) return;
+            Log.v(TAG, "Network is back (" + info.getTypeName() + "); reconnecting now.");
+            reconnectBackoff.reset();
+            scheduleReconnect(0);
+        }
+    };
+
     private WifiManager.WifiLock wifiLock;
     private SharedPreferences preferences;
 
+    // KEY_LASTPLAYER(_NAME), read once in onCreate so the ListeningThread
+    // needn't.
+    private volatile String lastPlayerId;
+    private volatile String lastPlayerName;
+
+    // Whether startConnection's connect is still in flight.
+    private final AtomicBoolean connecting = new AtomicBoolean(false);
+
     @Override
         public void onCreate() {
     	super.onCreate();
@@ -66,6 +211,20 @@ public class SqueezeService extends Service {
         
         preferences = getSharedPreferences(Preferences.NAME, MODE_PRIVATE);
         debugLogging = preferences.getBoolean(Preferences.KEY_DEBUG_LOGGING, false);
+        albumArtCache = AlbumArtCache.getInstance(this);
+        registerReceiver(connectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        playerStateStore = new PlayerStateStore(new File(getFilesDir(), "players.state"),
+                indexExecutor);
+        playerStateStore.load();
+        lastPlayerId = preferences.getString(Preferences.KEY_LASTPLAYER, null);
+        lastPlayerName = preferences.getString(Preferences.KEY_LASTPLAYER_NAME, lastPlayerId);
+        warmStart();
+        indexExecutor.execute(new Runnable() {
+            public void run() {
+                libraryIndex = LibraryIndex.open(libraryIndexFile());
+            }
+        });
     }
 	
     @Override
@@ -76,7 +235,13 @@ public class SqueezeService extends Service {
     @Override
 	public void onDestroy() {
         super.onDestroy();
+        stopTimeTicker();
+        unregisterReceiver(connectivityReceiver);
+        stopReconnecting();
         disconnect();
+        connectExecutor.shutdownNow();
+        discoveryExecutor.shutdownNow();
+        indexExecutor.shutdown();  // let a pending PlayerStateStore save finish
         callback.set(null);
     }
 
@@ -87,21 +252,199 @@ public class SqueezeService extends Service {
             connection.disconnect();
             connectionState.set(null);
         }
+        // Its web port pool is closed now; fetch art directly until the
+        // next connection has one.
+        if (albumArtCache != null) {
+            albumArtCache.setHttpConnectionPool(null);
+        }
     }
 
-    private synchronized void sendCommand(String... commands) {
-        if (commands.length == 0) return;
-        PrintWriter writer = socketWriter.get();
-        if (writer == null) return;
-        if (commands.length == 1) {
-            Log.v(TAG, "SENDING: " + commands[0]);
-            writer.println(commands[0]);
-        } else {
-            // Get it into one packet by deferring flushing...
-            for (String command : commands) {
-                writer.print(command + "\n");
+    // Starts connecting to the server we used last, before any client has
+    // bound and asked us to, with the player we used last assumed active.
+    // Its status is asked for ahead of the player list, so there's
+    // something to show as soon as the client is up.
+    private void warmStart() {
+        String hostPort = preferences.getString(Preferences.KEY_SERVERADDR, null);
+        if (hostPort == null || hostPort.length() == 0) return;
+        ConnectionState.Session session = null;
+        if (lastPlayerId != null && lastPlayerId.length() > 0) {
+            session = ConnectionState.Session.forLastPlayer(lastPlayerId, lastPlayerName);
+        }
+        Log.v(TAG, "Warm start: connecting to " + hostPort + ", last player " + lastPlayerId);
+        reconnectHostPort = hostPort;
+        startConnection(hostPort, session);
+    }
+
+    // Connects to hostPort ("host" or "host:port").  With a session, this
+    // is a reconnect: the session's players and state are carried over.
+    private void startConnection(final String hostPort, final ConnectionState.Session session) {
+        disconnect();  // if we're already connected to something
+        int colonPos = hostPort.indexOf(":");
+        boolean noPort = colonPos == -1;
+        final int port = noPort? 9090 : Integer.parseInt(hostPort.substring(colonPos + 1));
+        final String host = noPort ? hostPort : hostPort.substring(0, colonPos);
+
+        final ConnectionState newConnection = new ConnectionState(
+                currentConnectionGeneration.incrementAndGet(),
+                host,
+                port,
+                executor);
+        newConnection.restoreSnapshots(playerStateStore.snapshots());
+        if (session != null) newConnection.restoreSession(session);
+        connectionState.set(newConnection);
+        connecting.set(true);
+
+        // Start the off-thread connect.
+        connectExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    newConnection.connect(4000 /* ms timeout */);
+                    Log.d(TAG, "Connected to: " + hostPort);
+                    connecting.set(false);
+                    reconnectBackoff.reset();
+                    resumableSession.compareAndSet(session, null);
+                    // The active player first, so the client finds it
+                    // (and its saved state) when it hears we're connected.
+                    onCliPortConnectionEstablished(newConnection, session);
+                    setConnectionState(true, true);
+                    Log.d(TAG, "connection state broadcasted true.");
+                    checkServerAnswers(newConnection);
+                } catch (SocketTimeoutException e) {
+                    Log.e(TAG, "Socket timeout connecting to: " + hostPort);
+                    onConnectFailed();
+                } catch (IOException e) {
+                    Log.e(TAG, "IOException connecting to: " + hostPort);
+                    onConnectFailed();
+                }
+            }
+        });
+    }
+
+    // Something accepting connections on the CLI port isn't necessarily a
+    // SqueezeCenter that's going to answer.  Blocking; called on
+    // connectExecutor once the ListeningThread is running.
+    private void checkServerAnswers(ConnectionState connection) {
+        String reply;
+        try {
+            reply = connection.sendCommandForReply("version ?")
+                .get(SERVER_ANSWER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            reply = null;
+        } catch (ExecutionException e) {
+            reply = null;
+        } catch (InterruptedException e) {
+            return;  // shutting down
+        }
+        if (reply != null) {
+            Log.v(TAG, "Server says: " + reply);
+            return;
+        }
+        Log.e(TAG, "No answer to \"version ?\" from " + connection.getHost());
+        onConnectionLost(connection.getConnectionGeneration());
+    }
+
+    private void onConnectFailed() {
+        connecting.set(false);
+        // Only the first failure is news to the client; retries are quiet.
+        if (reconnectBackoff.getAttempts() == 0) setConnectionState(false, true);
+        scheduleReconnect(reconnectBackoff.nextDelayMs());
+    }
+
+    // Called when the server goes away without us asking (from the
+    // ListeningThread, or on losing the network).  Keeps what we knew, and
+    // starts trying to get it back.  Both can report the same loss at once;
+    // only the first call for a connection generation acts on it.
+    private synchronized void onConnectionLost(int generation) {
+        if (currentConnectionGeneration.get() != generation) return;
+        ConnectionState connection = connectionState.get();
+        if (connection != null) resumableSession.set(connection.getSession());
+        disconnect();
+        setConnectionState(false, false);
+        scheduleReconnect(reconnectBackoff.nextDelayMs());
+    }
+
+    // Replaces any pending attempt.  A negative delay means we've given up,
+    // which the client hears as a failed connect.
+    private synchronized void scheduleReconnect(long delayMs) {
+        if (reconnectFuture != null) reconnectFuture.cancel(false);
+        reconnectFuture = null;
+        if (reconnectHostPort == null) return;
+        if (delayMs < 0) {
+            Log.v(TAG, "Giving up reconnecting until the network changes.");
+            setConnectionState(false, true);
+            return;
+        }
+        Log.v(TAG, "Reconnecting in " + delayMs + "ms");
+        reconnectFuture = executor.schedule(new Runnable() {
+            public void run() {
+                String hostPort = reconnectHostPort;
+                if (hostPort == null) return;
+                ConnectionState connection = connectionState.get();
+                if (connection != null && connection.isConnected()) return;  // beaten to it
+                startConnection(hostPort, resumableSession.get());
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopReconnecting() {
+        reconnectHostPort = null;
+        resumableSession.set(null);
+        if (reconnectFuture != null) reconnectFuture.cancel(false);
+        reconnectFuture = null;
+    }
+
+    // Refreshes serverDiscovery unless its cache is still fresh (or force
+    // is set), then tells the client.  Calls while one is running are
+    // folded into it; a forced one that came too late gets its own.
+    private void startDiscovery(boolean force) {
+        if (force) forceDiscovery.set(true);
+        if (!discovering.compareAndSet(false, true)) return;
+        discoveryExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (forceDiscovery.getAndSet(false) || !serverDiscovery.isFresh()) {
+                        serverDiscovery.refresh(broadcastAddresses());
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Server discovery failed: " + e);
+                } finally {
+                    discovering.set(false);
+                }
+                if (forceDiscovery.get()) {
+                    startDiscovery(true);
+                    return;
+                }
+                if (callback.get() != null) {
+                    try {
+                        callback.get().onServersDiscovered();
+                    } catch (RemoteException e) {}
+                }
             }
-            writer.flush();
+        });
+    }
+
+    // The WiFi subnet's broadcast address, plus the all-ones one in case
+    // that isn't known (or a router only passes one of them).
+    private List<InetAddress> broadcastAddresses() throws IOException {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        addresses.add(InetAddress.getByName("255.255.255.255"));
+        DhcpInfo dhcp = ((WifiManager) getSystemService(Context.WIFI_SERVICE)).getDhcpInfo();
+        if (dhcp != null && dhcp.ipAddress != 0) {
+            int broadcast = (dhcp.ipAddress & dhcp.netmask) | ~dhcp.netmask;
+            byte[] quads = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                quads[i] = (byte) (broadcast >> (i * 8));  // little-endian
+            }
+            InetAddress subnet = InetAddress.getByAddress(quads);
+            if (!addresses.contains(subnet)) addresses.add(subnet);
+        }
+        return addresses;
+    }
+
+    private void sendCommand(String... commands) {
+        ConnectionState connection = connectionState.get();
+        if (connection != null) {
+            connection.sendCommand(commands);
         }
     }
 	
@@ -112,78 +455,186 @@ public class SqueezeService extends Service {
         }
     }
 	
-    private void onLineReceived(String serverLine) {
-        if (debugLogging) Log.v(TAG, "LINE: " + serverLine);
-        List<String> tokens = Arrays.asList(serverLine.split(" "));
-        if (tokens.size() < 2) {
+    // Decides from the raw bytes whether onLineReceived would act on a line,
+    // so that the rest (other players' chatter, commands we don't handle)
+    // is dropped for the price of a couple of table lookups, before any
+    // tokenizing or decoding.  Must accept everything onLineReceived uses.
+    private static boolean acceptLine(ConnectionState connection,
+            byte[] line, int offset, int length) {
+        int end = offset + length;
+        int firstEnd = offset;
+        while (firstEnd < end && line[firstEnd] != ' ') firstEnd++;
+        if (SERVER_COMMANDS.lookup(line, offset, firstEnd) != CliKeyTable.UNKNOWN) {
+            return true;
+        }
+        int secondEnd = firstEnd + 1;
+        while (secondEnd < end && line[secondEnd] != ' ') secondEnd++;
+        if (secondEnd > end) return false;
+        int command = PLAYER_COMMANDS.lookup(line, firstEnd + 1, secondEnd);
+        if (command == CliKeyTable.UNKNOWN) return false;
+        if (command == COMMAND_CLIENT || command == COMMAND_NAME) return true;
+        return connection.isTrackedPlayer(line, offset, firstEnd);
+    }
+
+    // The tokenizer has just been reset to the line; nothing has been
+    // decoded yet.  Keep this path allocation-free for the common case
+    // (status and notification lines), as it runs at least once a second.
+    private void onLineReceived(CliTokenizer tokens, byte[] line, int offset, int length) {
+        if (debugLogging && Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "LINE: " + Util.latin1String(line, offset, length));
+        }
+        if (!tokens.next()) return;
+        if (tokens.tokenEquals("serverstatus")) {
+            parseServerStatus(tokens);
             return;
         }
-        if (serverLine.startsWith("players 0 100 count")) {
-            parsePlayerList(tokens);
+        if (tokens.tokenEquals("rescan")) {
+            if (tokens.next() && tokens.tokenEquals("done")) {
+                // The library changed; see whether the index needs updating.
+                sendCommand("serverstatus 0 0");
+            }
             return;
         }
-        if ("pref".equals(tokens.get(0)) &&
-            "httpport".equals(tokens.get(1)) &&
-            tokens.size() >= 3) {
-            httpPort.set(Integer.parseInt(tokens.get(2)));
-            Log.v(TAG, "HTTP port is now: " + httpPort);
+        if (tokens.tokenEquals("pref")) {
+            if (tokens.next() && tokens.tokenEquals("httpport") && tokens.next()) {
+                ConnectionState connection = connectionState.get();
+                if (connection != null) {
+                    connection.setHttpPort(tokens.tokenAsIntOrZero());
+                    albumArtCache.setHttpConnectionPool(connection.getHttpConnectionPool());
+                    Log.v(TAG, "HTTP port is now: " + connection.getHttpPort());
+                }
+            }
             return;
         }
         
-        // Player-specific commands follow.  But we ignore all that aren't for our
-        // active player.
-        String activePlayer = activePlayerId();
-        if (activePlayer == null || activePlayer.length() == 0 ||
-            !decode(tokens.get(0)).equals(activePlayer)) {
-            // Different player that we're not interested in.   
-            // (yet? maybe later.)
-            return;
+        // Player-specific commands follow.  We keep state for every known
+        // player, but only the active one drives callbacks & notifications.
+        ConnectionState connection = connectionState.get();
+        if (connection == null) return;
+        PlayerState state = connection.lookupPlayerState(tokens);
+        if (state == null && connection.isActivePlayer(tokens)) {
+            // Not (yet) in the player list.  Could still be the active
+            // player, e.g. when a status arrives before the player list.
+            state = connection.getActivePlayerState();
         }
-        String command = tokens.get(1);
-        if (command == null) return;
-        if (serverLine.contains("prefset server volume")) {
-            String newVolume = tokens.get(4);
-            Log.v(TAG, "New volume is: " + newVolume);
-            sendNewVolumeCallback(Util.parseDecimalIntOrZero(newVolume));
+        // Only decoded for players we keep no state for, whose lines get
+        // past acceptLine only for the client and name commands below.
+        String playerId = state != null ? state.getPlayerId() : tokens.tokenString();
+        if (!tokens.next()) return;
+        int command = tokens.tokenId(PLAYER_COMMANDS);
+
+        // These also come for players we don't know (yet).
+        if (command == COMMAND_CLIENT) {
+            if (tokens.next()) onClientNotification(connection, playerId, tokens);
             return;
         }
-        if (command.equals("play")) {
-            setPlayingState(true);
+        if (command == COMMAND_NAME) {
+            if (tokens.next() && !tokens.tokenEquals("%3F")) {
+                onPlayerNameReceived(connection, playerId, tokens.tokenString());
+            }
             return;
         }
-        if (command.equals("stop")) {
-            setPlayingState(false);
+
+        if (state == null) return;
+        final boolean isActive = playerId.equals(connection.getActivePlayerId());
+        switch (command) {
+        case COMMAND_PREFSET:
+            if (!isActive) return;
+            if (tokens.next() && tokens.tokenEquals("server") &&
+                tokens.next() && tokens.tokenEquals("volume") &&
+                tokens.next()) {
+                int newVolume = tokens.tokenAsIntOrZero();
+                Log.v(TAG, "New volume is: " + newVolume);
+                connection.getVolumeController().onServerVolume(newVolume);
+                sendNewVolumeCallback(newVolume);
+            }
             return;
-        }
-        if (command.equals("pause")) {
-            boolean newState = !isPlaying.get();
-            if (tokens.size() >= 3) {
-                String explicitPause = tokens.get(2); 
-                if ("0".equals(explicitPause)) {
+        case COMMAND_PLAY:
+            setPlayingState(state, true);
+            return;
+        case COMMAND_STOP:
+            setPlayingState(state, false);
+            return;
+        case COMMAND_PAUSE:
+            boolean newState = !state.isPlaying();
+            if (tokens.next()) {
+                if (tokens.tokenEquals("0")) {
                     newState = true;  // playing.  (unpaused)
-                } else if ("1".equals(explicitPause)) {
+                } else if (tokens.tokenEquals("1")) {
                     newState = false;  // explicitly paused.
                 }
             }
-            setPlayingState(newState);
+            setPlayingState(state, newState);
             return;
-        }
-        if (command.equals("status")) {
-            parseStatusLine(tokens);
+        case COMMAND_STATUS:
+            parseStatusLine(tokens, state, isActive);
             return;
-        }
-        if (command.equals("playlist")) {
-            if (tokens.size() >= 4 && "newsong".equals(tokens.get(2))) {
-                String newSong = decode(tokens.get(3));
-                currentSong.set(newSong);
-                updateOngoingNotification();
-                sendMusicChangedCallback();
+        case COMMAND_PLAYLIST:
+            if (tokens.next() && tokens.tokenEquals("newsong") && tokens.next()) {
+                tokens.decodeToken();
+                state.setSong(Util.updatedString(state.get().getSong(),
+                        tokens.chars(), tokens.charCount()));
+                if (isActive) {
+                    updateOngoingNotification();
+                    sendMusicChangedCallback();
+                }
                 
                 // Now also ask for the rest of the status.
-                sendPlayerCommand("status - 1 tags:ylqwaJ");
+                connection.sendPlayerCommand(state.getPlayerId(), STATUS_REQUEST);
+            }
+            return;
+        }
+    }
+
+    // "<playerid> client new|reconnect|disconnect|forget", as players come
+    // and go.  Applied to the known players one at a time, rather than
+    // listing them all again.  A disconnected player stays in the server's
+    // list (as connected:0) until it's forgotten, so it stays in ours too.
+    private void onClientNotification(ConnectionState connection, String playerId,
+            CliTokenizer tokens) {
+        Log.v(TAG, "Player " + playerId + ": client " + tokens.tokenString());
+        if (tokens.tokenEquals("new") || tokens.tokenEquals("reconnect")) {
+            // The notification doesn't carry the name; the reply to this
+            // adds the player.
+            connection.sendPlayerCommand(playerId, "name ?");
+        } else if (tokens.tokenEquals("forget")) {
+            if (!connection.removeKnownPlayer(playerId)) return;
+            updateNotificationSubscription(connection);
+            if (callback.get() != null) {
+                try {
+                    callback.get().onPlayerRemoved(playerId);
+                } catch (RemoteException e) {}
+            }
+            // Don't leave the client pointed at a player that's gone.
+            if (playerId.equals(connection.getActivePlayerId())) {
+                Map<String, String> players = connection.getKnownPlayers();
+                if (players != null && !players.isEmpty()) {
+                    changeActivePlayer(players.keySet().iterator().next());  // arbitrary
+                }
             }
         }
+    }
+
+    // "<playerid> name <name>", in reply to "name ?" or after a rename.
+    private void onPlayerNameReceived(ConnectionState connection, String playerId,
+            String playerName) {
+        if (!connection.addKnownPlayer(playerId, playerName)) return;
+        Log.v(TAG, "Player added: " + playerId + ", " + playerName);
+        updateNotificationSubscription(connection);
+        if (connection.getPlayerState(playerId).isUnknown()) {
+            connection.sendPlayerCommand(playerId, STATUS_REQUEST);
+        }
+        if (callback.get() != null) {
+            try {
+                callback.get().onPlayerAdded(playerId, playerName);
+            } catch (RemoteException e) {}
+        }
 
+        // The first player to turn up gets to be the active one.
+        String activePlayer = connection.getActivePlayerId();
+        if (activePlayer == null || activePlayer.length() == 0) {
+            changeActivePlayer(playerId);
+        }
     }
 
     private String activePlayerId() {
@@ -192,6 +643,22 @@ public class SqueezeService extends Service {
         return connection.getActivePlayerId();
     }
 
+    // Returns null if there's no active player.
+    private PlayerState activePlayerState() {
+        ConnectionState connection = connectionState.get();
+        if (connection == null) return null;
+        return connection.getActivePlayerState();
+    }
+
+    private PlayerState.Snapshot activePlayerSnapshot() {
+        PlayerState state = activePlayerState();
+        return state == null ? PlayerState.Snapshot.EMPTY : state.get();
+    }
+
+    private boolean isPlaying() {
+        return activePlayerSnapshot().isPlaying();
+    }
+
     private void sendNewVolumeCallback(int newVolume) {
         if (callback.get() == null) return;
         try {
@@ -208,136 +675,462 @@ public class SqueezeService extends Service {
         }
     }
     
-    private void parseStatusLine(List<String> tokens) {
-        int n = 0;
-        boolean musicHasChanged = false;
+    // Called with the tokenizer positioned on the "status" token.  The
+    // line's changes are gathered in locals and published as one new
+    // PlayerState.Snapshot, so binder threads never see a half-applied
+    // line.  Strings are only created for values that actually changed.
+    private void parseStatusLine(CliTokenizer tokens, PlayerState state, boolean isActive) {
+        final PlayerState.Snapshot old = state.get();
+        String song = old.getSong();
+        String artist = old.getArtist();
+        String album = old.getAlbum();
+        String artworkTrackId = old.getArtworkTrackId();
         boolean sawArtworkId = false;
-        int time = 0;
+        boolean sawMode = false;
+        boolean playing = false;
+        int timeMillis = 0;
+        int rate = 1;
         int duration = 0;
+        int playlistIndex = -1;
+        int playlistTracks = 0;
 
-        for (String token : tokens) {
-            n++;
-            if (n <= 2) continue;
-            if (token == null || token.length() == 0) continue;
-            int colonPos = token.indexOf("%3A");
-            if (colonPos == -1) {
-                if (n <= 4) continue;  // e.g. "00%3A04%3A20%3A05%3A09%3A36 status - 1 ...."
-                Log.e(TAG, "Expected colon in status line token: " + token);
+        while (tokens.next()) {
+            if (!tokens.hasKey()) {
+                if (tokens.tokenIndex() == 2 && !tokens.tokenEquals("-")) {
+                    // A window of the playlist rather than the current song.
+                    if (isActive) parseArtLookahead(tokens);
+                    return;
+                }
+                // e.g. "00%3A04%3A20%3A05%3A09%3A36 status - 1 ...."
+                if (tokens.tokenIndex() <= 3) continue;
+                Log.e(TAG, "Expected colon in status line token: " + tokens.tokenString());
                 return;
             }
-            String key = decode(token.substring(0, colonPos));
-            String value = decode(token.substring(colonPos + 3));
-            if (key == null || value == null) continue;
-            if (key.equals("mixer volume")) {
-                continue;
-            }
-            if (key.equals("mode")) {
-                if (value.equals("pause")) {
-                    setPlayingState(false);
-                } else if (value.equals("play")) {
-                    setPlayingState(true);
+            switch (tokens.keyId(STATUS_KEYS)) {
+            case STATUS_MODE:
+                tokens.decodeValue();
+                if (Util.contentEquals("pause", tokens.chars(), tokens.charCount())) {
+                    sawMode = true;
+                    playing = false;
+                } else if (Util.contentEquals("play", tokens.chars(), tokens.charCount())) {
+                    sawMode = true;
+                    playing = true;
+                }
+                break;
+            case STATUS_ARTIST:
+                tokens.decodeValue();
+                artist = Util.updatedString(artist, tokens.chars(), tokens.charCount());
+                break;
+            case STATUS_TITLE:
+                tokens.decodeValue();
+                song = Util.updatedString(song, tokens.chars(), tokens.charCount());
+                break;
+            case STATUS_ALBUM:
+                tokens.decodeValue();
+                album = Util.updatedString(album, tokens.chars(), tokens.charCount());
+                break;
+            case STATUS_ARTWORK_TRACK_ID:
+                tokens.decodeValue();
+                artworkTrackId = Util.updatedString(artworkTrackId, tokens.chars(), tokens.charCount());
+                sawArtworkId = true;
+                break;
+            case STATUS_TIME:
+                timeMillis = tokens.valueAsMillisOrZero();
+                break;
+            case STATUS_RATE:
+                rate = tokens.valueAsIntOrZero();
+                break;
+            case STATUS_DURATION:
+                duration = tokens.valueAsIntOrZero();
+                break;
+            case STATUS_PLAYLIST_CUR_INDEX:
+                playlistIndex = tokens.valueAsIntOrZero();
+                break;
+            case STATUS_PLAYLIST_TRACKS:
+                playlistTracks = tokens.valueAsIntOrZero();
+                break;
+            case STATUS_MIXER_VOLUME:
+                if (isActive) {
+                    ConnectionState connection = connectionState.get();
+                    if (connection != null) {
+                        connection.getVolumeController().onServerVolume(tokens.valueAsIntOrZero());
+                    }
                 }
-                continue;
+                break;
             }
-            if (key.equals("artist")) {
-                if (Util.atomicStringUpdated(currentArtist, value)) musicHasChanged = true;
-                continue;
+        }
+        if (isActive && playlistIndex >= 0) {
+            requestArtLookahead(state.getPlayerId(), playlistIndex, playlistTracks);
+        }
+        boolean musicHasChanged = song != old.getSong() || artist != old.getArtist() ||
+            album != old.getAlbum();
+        if (musicHasChanged && !sawArtworkId) {
+            // TODO: we should disambiguate between no artwork because there is no
+            // artwork (explicitly known) and no artwork because it's e.g. Pandora,
+            // in which case we'd use the current cover.jpg URL.
+            artworkTrackId = null;
+        }
+
+        if (sawMode && !state.acceptServerPlaying(playing)) {
+            // Sent before the server saw our own play/pause.
+            sawMode = false;
+        }
+
+        // Publish at most once, and not at all if readers wouldn't see a
+        // difference.  Only the playing flag can race with us (local
+        // play/pause), and only matters if this line didn't carry a mode.
+        final long now = SystemClock.elapsedRealtime();
+        PlayerState.Snapshot current = old;
+        PlayerState.Snapshot updated;
+        while (true) {
+            updated = new PlayerState.Snapshot(song, artist, album, artworkTrackId,
+                    timeMillis, now, rate, duration, sawMode ? playing : current.isPlaying());
+            if (!state.isPlaceholder(current) && updated.sameAs(current, now)) {
+                updated = current;
+                break;
             }
-            if (key.equals("title")) {
-                if (Util.atomicStringUpdated(currentSong, value)) musicHasChanged = true;
-                continue;
+            if (state.publish(current, updated)) break;
+            current = state.get();
+        }
+        // Only a song change is worth saving.  Judge that against what this
+        // line started from, not whatever a CAS retry last saw.
+        if (state.isPlaceholder(old) || !updated.sameSong(old)) {
+            playerStateStore.onSnapshotChanged(state.getPlayerId(), updated);
+        }
+        if (!isActive) return;
+
+        if (updated.isPlaying() != current.isPlaying()) {
+            onPlayingStateChanged(updated.isPlaying());
+        }
+        if (musicHasChanged) {
+            updateOngoingNotification();
+            sendMusicChangedCallback();
+        }
+        sendNewTimeCallback(updated.getSecondsElapsed(now), duration);
+    }
+    
+    // Asks for the artwork_track_ids of the next few playlist entries, so
+    // their art is cached by the time they start playing.  Only while a
+    // client is attached to show it.
+    private void requestArtLookahead(String playerId, int playlistIndex, int playlistTracks) {
+        int count = Math.min(ART_LOOKAHEAD_TRACKS, playlistTracks - playlistIndex - 1);
+        if (count <= 0 || callback.get() == null) return;
+        String lookahead = playerId + " " + playlistIndex + " " + playlistTracks;
+        if (lookahead.equals(lastArtLookahead)) return;
+        ConnectionState connection = connectionState.get();
+        if (connection == null) return;
+        lastArtLookahead = lookahead;
+        connection.sendPlayerCommand(playerId,
+                "status " + (playlistIndex + 1) + " " + count + " tags:J");
+    }
+
+    // Called with the tokenizer on the start index of a "status <start>
+    // <count> tags:J" reply.  Each entry is "playlist index:N ...
+    // artwork_track_id:ID"; anything before the first entry is the
+    // player's own status, which the regular status lines cover.
+    private void parseArtLookahead(CliTokenizer tokens) {
+        Map<String, String> urls = new LinkedHashMap<String, String>();
+        boolean inEntry = false;
+        while (tokens.next()) {
+            if (!tokens.hasKey()) continue;
+            switch (tokens.keyId(STATUS_KEYS)) {
+            case STATUS_PLAYLIST_INDEX:
+                inEntry = true;
+                break;
+            case STATUS_ARTWORK_TRACK_ID:
+                if (!inEntry) break;
+                String artworkTrackId = tokens.valueString();
+                String url = albumArtUrl(artworkTrackId);
+                if (url != null) {
+                    urls.put(artworkTrackId, url);
+                }
+                break;
             }
-            if (key.equals("album")) {
-                if (Util.atomicStringUpdated(currentAlbum, value)) musicHasChanged = true;
-                continue;
+        }
+        if (!urls.isEmpty()) {
+            albumArtCache.prefetch(urls);
+        }
+    }
+
+    // The active player's art, or "" if there's no connection or no HTTP
+    // port yet.
+    private String albumArtUrl(ConnectionState connection, PlayerState.Snapshot snapshot) {
+        if (connection == null) return "";
+        Integer port = connection.getHttpPort();
+        if (port == null || port == 0) return "";
+        String artworkTrackId = snapshot.getArtworkTrackId();
+        if (artworkTrackId != null) {
+            return albumArtUrl(artworkTrackId);
+        } else {
+            // Return the "current album art" URL instead, with the cache-buster
+            // of the song name in it, to force the activity to reload when
+            // listening to e.g. Pandora, where there is no artwork_track_id (tag J)
+            // in the status.
+            return "http://" + connection.getHost() + ":" + port
+                + "/music/current/cover?player=" + connection.getActivePlayerId()
+                + "&song=" + URLEncoder.encode(Util.nonNullString(snapshot.getSong()));
+        }
+    }
+
+    // Everything from one snapshot of the active player.  Hands back the
+    // same NowPlaying (and version) for as long as none of it changes.
+    private NowPlaying getNowPlaying() {
+        ConnectionState connection = connectionState.get();
+        String playerId = null;
+        String playerName = null;
+        PlayerState.Snapshot snapshot = PlayerState.Snapshot.EMPTY;
+        if (connection != null) {
+            playerId = connection.getActivePlayerId();
+            Map<String, String> players = connection.getKnownPlayers();
+            if (playerId != null && players != null) playerName = players.get(playerId);
+            PlayerState state = connection.getActivePlayerState();
+            if (state != null) snapshot = state.get();
+        }
+        String albumArtUrl = albumArtUrl(connection, snapshot);
+        while (true) {
+            NowPlaying last = lastNowPlaying.get();
+            if (last.sameAs(playerId, playerName, albumArtUrl, snapshot)) return last;
+            NowPlaying nowPlaying = new NowPlaying(last.getVersion() + 1,
+                    playerId, playerName, albumArtUrl, snapshot);
+            if (lastNowPlaying.compareAndSet(last, nowPlaying)) return nowPlaying;
+        }
+    }
+
+    // Returns null if the HTTP port isn't known yet.
+    private String albumArtUrl(String artworkTrackId) {
+        ConnectionState connection = connectionState.get();
+        if (connection == null) return null;
+        Integer port = connection.getHttpPort();
+        if (port == null || port == 0) return null;
+        return "http://" + connection.getHost() + ":" + port
+            + "/music/" + artworkTrackId + "/cover.jpg";
+    }
+
+    // Collects the records of e.g. "artists 0 50 id:12 artist:Foo id:13
+    // artist:Bar count:8123" as they stream in, for BrowseCache or, if it's
+    // the reply LibrarySync is waiting for, for that.
+    private class ListingHandler implements CliRecordParser.RecordHandler {
+        private String category;
+        private String nameKey;
+        private final List<String> ids = new ArrayList<String>();
+        private final List<String> names = new ArrayList<String>();
+
+        void startListing(String category) {
+            this.category = category;
+            this.nameKey = BrowseCache.nameKey(category);
+            ids.clear();
+            names.clear();
+        }
+
+        public boolean onRecord(CliTokenizer record) {
+            String id = null;
+            String name = "";
+            while (record.next()) {
+                if (record.keyEquals("id")) {
+                    id = record.valueString();
+                } else if (record.keyEquals(nameKey)) {
+                    name = record.valueString();
+                }
             }
-            if (key.equals("artwork_track_id")) {
-                currentArtworkTrackId.set(value);
-                sawArtworkId = true;
-                continue;
+            if (id != null) {
+                ids.add(id);
+                names.add(name);
             }
-            if (key.equals("time")) {
-                time = Util.parseDecimalIntOrZero(value);
-                continue;
+            return true;
+        }
+
+        public void onLineEnd(CliTokenizer header) {
+            int start = -1;
+            int pageSize = 0;
+            int total = 0;
+            while (header.next()) {
+                if (!header.hasKey()) {
+                    if (header.tokenIndex() == 1) start = header.tokenAsIntOrZero();
+                    if (header.tokenIndex() == 2) pageSize = header.tokenAsIntOrZero();
+                } else if (header.keyEquals("count")) {
+                    total = header.valueAsIntOrZero();
+                }
             }
-            if (key.equals("duration")) {
-                duration = Util.parseDecimalIntOrZero(value);
-                continue;
+            if (start >= 0) {
+                onListingReceived(category, start, pageSize,
+                        ids.toArray(new String[ids.size()]),
+                        names.toArray(new String[names.size()]), total);
             }
-            // TODO: the rest ....
-            // 00%3A04%3A20%3A17%3A04%3A7f status   player_name%3AOffice player_connected%3A1 player_ip%3A10.0.0.73%3A42648 power%3A1 signalstrength%3A0 mode%3Aplay time%3A99.803 rate%3A1 duration%3A224.705 can_seek%3A1 mixer%20volume%3A25 playlist%20repeat%3A0 playlist%20shuffle%3A0 playlist%20mode%3Adisabled playlist_cur_index%3A5 playlist_timestamp%3A1250053991.01067 playlist_tracks%3A46
+            ids.clear();
+            names.clear();
         }
-        if (musicHasChanged) {
-            if (!sawArtworkId) {
-                // TODO: we should disambiguate between no artwork because there is no
-                // artwork (explicitly known) and no artwork because it's e.g. Pandora,
-                // in which case we'd use the current cover.jpg URL.
-                currentArtworkTrackId.set(null);
+    }
+
+    private void onListingReceived(String category, int start, int pageSize,
+            String[] ids, String[] names, int total) {
+        ConnectionState connection = connectionState.get();
+        if (connection == null) return;
+        LibrarySync sync = connection.getLibrarySync();
+        if (sync.isAwaiting(category, start, pageSize)) {
+            String next = sync.onPageReceived(category, start, ids, names, total);
+            if (next != null) {
+                connection.sendCommand(next);
+            } else {
+                maybeWriteLibraryIndex(sync);
+            }
+            return;
+        }
+        connection.getBrowseCache(category).onPageReceived(start, ids, names, total);
+        sendBrowseItemsLoadedCallback(category, start, ids.length, total);
+    }
+
+    // e.g. "serverstatus 0 0 lastscan:1250053991 version:7.3.3 ...", with
+    // "rescan:1" while a scan is running.  Mid-scan we wait for the
+    // "rescan done" notification instead.
+    private void parseServerStatus(CliTokenizer tokens) {
+        ConnectionState connection = connectionState.get();
+        if (connection == null) return;
+        long lastScan = -1;
+        boolean scanning = false;
+        while (tokens.next()) {
+            if (!tokens.hasKey()) continue;
+            if (tokens.keyEquals("lastscan")) {
+                lastScan = tokens.valueAsLongOrZero();
+            } else if (tokens.keyEquals("rescan")) {
+                scanning = tokens.valueAsIntOrZero() != 0;
             }
-            updateOngoingNotification();
-            sendMusicChangedCallback();
         }
-        Integer lastTimeInteger = currentTimeSecond.get();
-        int lastTime = lastTimeInteger == null ? 0 : lastTimeInteger.intValue();
-        if (musicHasChanged || time != lastTime) {
-            currentTimeSecond.set(time);
-            currentSongDuration.set(duration);
-            sendNewTimeCallback(time, duration);
+        if (lastScan < 0 || scanning) return;
+        String first = connection.getLibrarySync().onServerStatus(libraryIndex, lastScan);
+        if (first != null) {
+            Log.v(TAG, "Library index is out of date; syncing.");
+            connection.sendCommand(first);
         }
     }
-    
-    private void parsePlayerList(List<String> tokens) {
-        Log.v(TAG, "Parsing player list.");
-        // TODO: can this block (sqlite lookup via binder call?)  Might want to move it elsewhere.
-    	final String lastConnectedPlayer = preferences.getString(Preferences.KEY_LASTPLAYER, null);
-    	Log.v(TAG, "lastConnectedPlayer was: " + lastConnectedPlayer);
-        Map<String, String> players = new HashMap<String, String>();
-                
-        int n = 0;
-        int currentPlayerIndex = -1;
-        String currentPlayerId = null;
-        String currentPlayerName = null;
-        String defaultPlayerId = null;
-        
-        for (String token : tokens) {
-            if (++n <= 3) continue;
-            int colonPos = token.indexOf("%3A");
-            if (colonPos == -1) {
-                Log.e(TAG, "Expected colon in playerlist token.");
-                return;
+
+    private File libraryIndexFile() {
+        return new File(getFilesDir(), "library.idx");
+    }
+
+    private void maybeWriteLibraryIndex(LibrarySync sync) {
+        final LibraryIndex.Builder builder = sync.takeCompleted();
+        if (builder == null) return;
+        indexExecutor.execute(new Runnable() {
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    builder.write(libraryIndexFile());
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't write library index: " + e);
+                    return;
+                }
+                libraryIndex = LibraryIndex.open(libraryIndexFile());
+                Log.v(TAG, "Library index of " + builder.size() + " entries written in "
+                      + (SystemClock.elapsedRealtime() - start) + "ms");
             }
-            String key = token.substring(0, colonPos);
-            String value = decode(token.substring(colonPos + 3));
-            if (debugLogging) Log.v(TAG, "key=" + key + ", value: " + value);
-            if ("playerindex".equals(key)) {
-                maybeAddPlayerToMap(currentPlayerId, currentPlayerName, players);
-                currentPlayerId = null;
-                currentPlayerName = null;
-                currentPlayerIndex = Integer.parseInt(value);
-            } else if ("playerid".equals(key)) {
-                currentPlayerId = value;
-                if (value.equals(lastConnectedPlayer)) {
-                    defaultPlayerId = value;  // Still around, so let's use it.
+        });
+    }
+
+    private void sendBrowseItemsLoadedCallback(String category, int start, int count, int total) {
+        if (callback.get() == null) return;
+        try {
+            callback.get().onBrowseItemsLoaded(category, start, count, total);
+        } catch (RemoteException e) {
+        }
+    }
+
+    // Collects the records of "players 0 50 count:2 playerindex:0
+    // playerid:... name:... playerindex:1 ..." as they stream in.
+    private class PlayerListHandler implements CliRecordParser.RecordHandler {
+        private final Map<String, String> players = new HashMap<String, String>();
+
+        public boolean onRecord(CliTokenizer record) {
+            String playerId = null;
+            String playerName = null;
+            while (record.next()) {
+                if (record.keyEquals("playerid")) {
+                    playerId = record.valueString();
+                } else if (record.keyEquals("name")) {
+                    playerName = record.valueString();
                 }
-            } else if ("name".equals(key)) {
-                currentPlayerName = value;
             }
+            if (debugLogging) Log.v(TAG, "playerid=" + playerId + ", name=" + playerName);
+            maybeAddPlayerToMap(playerId, playerName, players);
+            return true;
         }
-        maybeAddPlayerToMap(currentPlayerId, currentPlayerName, players);
 
-        if (defaultPlayerId == null || !players.containsKey(defaultPlayerId)) {
-            defaultPlayerId = currentPlayerId;  // arbitrary; last one in list.
+        public void onLineEnd(CliTokenizer header) {
+            int start = -1;
+            int count = -1;
+            while (header.next()) {
+                if (!header.hasKey()) {
+                    if (header.tokenIndex() == 1) start = header.tokenAsIntOrZero();
+                } else if (header.keyEquals("count")) {
+                    count = header.valueAsIntOrZero();
+                }
+            }
+            // Anything without a count isn't the answer to our query.
+            if (start >= 0 && count >= 0) {
+                onPlayerPageReceived(start, new HashMap<String, String>(players), count);
+            }
+            players.clear();
         }
+    }
+
+    // Each page is merged into the known players as it lands, so the
+    // client can offer the first players while the rest are still coming.
+    // The first page tells us the count; the rest are then all asked for
+    // at once, sharing the pipeline.
+    private void onPlayerPageReceived(int start, Map<String, String> page, int count) {
+        Log.v(TAG, "Got players " + start + "-" + (start + page.size()) + " of " + count);
+        ConnectionState connection = connectionState.get();
+        if (connection == null) return;
+
+        Map<String, String> players;
+        if (start == 0) {
+            // A fresh listing: players not in it have gone away.
+            players = page;
+            List<String> pageCommands = new ArrayList<String>();
+            for (int next = PLAYER_PAGE_SIZE; next < count; next += PLAYER_PAGE_SIZE) {
+                pageCommands.add("players " + next + " " + PLAYER_PAGE_SIZE);
+            }
+            connection.sendCommand(pageCommands.toArray(new String[pageCommands.size()]));
+        } else {
+            players = new HashMap<String, String>();
+            Map<String, String> known = connection.getKnownPlayers();
+            if (known != null) players.putAll(known);
+            players.putAll(page);
+        }
+        connection.setKnownPlayers(players);
+        updateNotificationSubscription(connection);
+
+        // Learn the current state of every player up front (in one packet),
+        // so that switching players later can show it right away.  From then
+        // on, the notifications we subscribe to keep them current.
+        List<String> statusCommands = new ArrayList<String>();
+        for (String playerId : page.keySet()) {
+            if (connection.getPlayerState(playerId).isUnknown()) {
+                statusCommands.add(URLEncoder.encode(playerId) + " " + STATUS_REQUEST);
+            }
+        }
+        connection.sendCommand(statusCommands.toArray(new String[statusCommands.size()]));
 
-        knownPlayers.set(players);
-        
         if (callback.get() != null) {
             try {
                 callback.get().onPlayersDiscovered();
             } catch (RemoteException e) {}
         }
-        
-        changeActivePlayer(defaultPlayerId);
+
+        // Prefer the player we last used, wherever it turns up.  Failing
+        // that, keep the current one, or pick one once the list is complete.
+        // TODO: can this block (sqlite lookup via binder call?)  Might want to move it elsewhere.
+        String lastConnectedPlayer = lastPlayerId;
+        String activePlayer = connection.getActivePlayerId();
+        boolean activeStillThere = activePlayer != null && players.containsKey(activePlayer);
+        if (lastConnectedPlayer != null && page.containsKey(lastConnectedPlayer)) {
+            if (start == 0 || !lastConnectedPlayer.equals(activePlayer)) {
+                changeActivePlayer(lastConnectedPlayer);
+            }
+        } else if (start == 0 && activeStillThere) {
+            changeActivePlayer(activePlayer);
+        } else if (!activeStillThere && start + PLAYER_PAGE_SIZE >= count && !players.isEmpty()) {
+            changeActivePlayer(players.keySet().iterator().next());  // arbitrary
+        }
     }
 
     private boolean changeActivePlayer(final String playerId) {
@@ -345,20 +1138,101 @@ public class SqueezeService extends Service {
         if (connection == null) {
             return false;
         }
-        return connection.changeActivePlayer(playerId);
+        Map<String, String> players = connection.getKnownPlayers();
+        if (players == null) {
+            Log.v(TAG, "Can't set player; none known.");
+            return false;
+        }
+        if (!players.containsKey(playerId)) {
+            Log.v(TAG, "Player " + playerId + " not known.");
+            return false;
+        }
+
+        Log.v(TAG, "Active player now: " + playerId + ", " + players.get(playerId));
+        boolean changed = connection.changeActivePlayer(playerId);
+
+        // Normally we've been tracking this player all along.  Only ask for
+        // its status if we haven't heard about it yet, and the subscription
+        // change below isn't about to.
+        if (!changed && connection.getActivePlayerState().isUnknown()) {
+            sendPlayerCommand(STATUS_REQUEST);
+        }
+
+        if (changed) {
+            updatePlayerSubscriptionState();
+            updateNotificationSubscription(connection);
+        }
+
+        // The name may only now be known, after a warm start.
+        final String playerName = players.get(playerId);
+        if (changed || !playerName.equals(lastPlayerName)) {
+            lastPlayerId = playerId;
+            lastPlayerName = playerName;
+            // NOTE: this involves a write and can block (sqlite lookup via binder call), so
+            // should be done off-thread, so we can process service requests & send our callback
+            // as quickly as possible.
+            executor.execute(new Runnable() {
+                public void run() {
+                    SharedPreferences.Editor editor = preferences.edit();              
+                    editor.putString(Preferences.KEY_LASTPLAYER, playerId);
+                    editor.putString(Preferences.KEY_LASTPLAYER_NAME, playerName);
+                    editor.commit();
+                }
+            });
+        }
+        
+        if (callback.get() != null) {
+            try {
+                callback.get().onPlayerChanged(playerId, players.get(playerId));
+            } catch (RemoteException e) {}
+        }
+
+        if (changed) {
+            // Show what we already know about the new player straight away.
+            PlayerState.Snapshot snapshot = activePlayerSnapshot();
+            onPlayingStateChanged(snapshot.isPlaying());
+            sendMusicChangedCallback();
+            sendNewTimeCallback(snapshot.getSecondsElapsed(SystemClock.elapsedRealtime()),
+                    snapshot.getSongDuration());
+        }
+        return true;
     }
     
     private void updatePlayerSubscriptionState() {
-        // Subscribe or unsubscribe to the player's realtime status updates
-        // depending on whether we have an Activity or some sort of client
-        // that cares about second-to-second updates.
+        // Subscribe or unsubscribe to the player's status updates depending
+        // on whether we have an Activity or some sort of client that cares
+        // about second-to-second updates.  The server pushes a status on
+        // every change anyway; the periodic one just keeps our clock honest.
+        // Either way the reply is a full status.
         if (callback.get() != null) {
-            sendPlayerCommand("status - 1 subscribe:1");
+            sendPlayerCommand(STATUS_REQUEST + " subscribe:" + STATUS_RESYNC_SECONDS);
+            startTimeTicker();
         } else {
-            sendPlayerCommand("status - 1 subscribe:0");
+            sendPlayerCommand(STATUS_REQUEST + " subscribe:0");
+            stopTimeTicker();
         }
     }
 
+    private synchronized void startTimeTicker() {
+        if (timeTicker != null) return;
+        timeTicker = executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                PlayerState.Snapshot snapshot = activePlayerSnapshot();
+                if (!snapshot.isPlaying()) return;
+                int seconds = snapshot.getSecondsElapsed(SystemClock.elapsedRealtime());
+                if (seconds == lastTickSeconds) return;
+                lastTickSeconds = seconds;
+                sendNewTimeCallback(seconds, snapshot.getSongDuration());
+            }
+        }, TIME_TICK_MS, TIME_TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopTimeTicker() {
+        if (timeTicker == null) return;
+        timeTicker.cancel(false);
+        timeTicker = null;
+    }
+
     // Add String pair to map if both are non-null and non-empty.    
     private static void maybeAddPlayerToMap(String currentPlayerId,
             String currentPlayerName, Map<String, String> players) {
@@ -369,27 +1243,66 @@ public class SqueezeService extends Service {
         }
     }
 
-    private String decode(String substring) {
-        try {
-            return URLDecoder.decode(substring, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            return "";
+    // With a session, the players we knew are already back in place; they
+    // only get listed again if we were gone long enough to have missed
+    // some coming and going.
+    private void onCliPortConnectionEstablished(ConnectionState connection,
+            ConnectionState.Session session) {
+        Thread listeningThread = new ListeningThread(connection);
+        listeningThread.start();
+
+        updateNotificationSubscription(connection);
+        if (session != null) {
+            albumArtCache.setHttpConnectionPool(connection.getHttpConnectionPool());
+            String activePlayer = session.getActivePlayerId();
+            Map<String, String> players = connection.getKnownPlayers();
+            if (players != null) {
+                // Refresh what we showed from the session, in one packet.
+                // The active player's comes with its subscription, below.
+                List<String> statusCommands = new ArrayList<String>();
+                for (String playerId : players.keySet()) {
+                    if (playerId.equals(activePlayer)) continue;
+                    statusCommands.add(URLEncoder.encode(playerId) + " " + STATUS_REQUEST);
+                }
+                connection.sendCommand(statusCommands.toArray(new String[statusCommands.size()]));
+            }
+            if (activePlayer != null) changeActivePlayer(activePlayer);
+        }
+        if (session == null || !session.isPlayerListComplete() ||
+            session.getAgeMillis() > SESSION_RELIST_AFTER_MS) {
+            connection.sendCommand("players 0 " + PLAYER_PAGE_SIZE);  // more pages follow if needed
         }
+        connection.sendCommand("pref httpport ?",  // learn the HTTP port (needed for images)
+                "serverstatus 0 0"  // is the library index up to date?
+        );
     }
 
-    private void onCliPortConnectionEstablished() {
-        Thread listeningThread = new ListeningThread(socketRef.get(),
-                                                     currentConnectionGeneration.incrementAndGet());
-        listeningThread.start();
+    // Rather than "listen 1", which pushes every notification there is, ask
+    // for just the ones onLineReceived acts on.  Which those are depends on
+    // whether there are players to track, which one is active and whether
+    // a client is attached, so this is called again whenever any changes.
+    private void updateNotificationSubscription() {
+        ConnectionState connection = connectionState.get();
+        if (connection != null) updateNotificationSubscription(connection);
+    }
 
-        sendCommand("listen 1",
-                "players 0 100",   // get first 100 players
-                "pref httpport ?"  // learn the HTTP port (needed for images)
-        );
+    private void updateNotificationSubscription(ConnectionState connection) {
+        StringBuilder types = new StringBuilder("client,name,rescan");
+        Map<String, String> players = connection.getKnownPlayers();
+        if (players != null && !players.isEmpty()) {
+            // Every known player's state is kept current.
+            types.append(",play,stop,pause,playlist");
+        }
+        String activePlayer = connection.getActivePlayerId();
+        if (activePlayer != null && activePlayer.length() > 0 && callback.get() != null) {
+            // Only the active player's volume, and only for a client to
+            // show; a status brings it up to date when one attaches.
+            types.append(",prefset");
+        }
+        connection.subscribeToNotifications(types.toString());
     }
 
     private void setConnectionState(boolean currentState, boolean postConnect) {
-        isConnected.set(currentState);
         if (callback.get() == null) {
             return;
         }
@@ -401,7 +1314,19 @@ public class SqueezeService extends Service {
         }
     }
 	
-    private void setPlayingState(boolean state) {
+    // For play/pause state reported by the server.
+    private void setPlayingState(PlayerState playerState, boolean state) {
+        if (!playerState.acceptServerPlaying(state)) {
+            Log.v(TAG, "Ignoring stale play state from server: " + state);
+            return;
+        }
+        if (playerState.setPlaying(state) &&
+            playerState.getPlayerId().equals(activePlayerId())) {
+            onPlayingStateChanged(state);
+        }
+    }
+
+    private void onPlayingStateChanged(boolean state) {
         // TODO: this might be running in the wrong thread.  Is wifiLock thread-safe?
         if (state && !wifiLock.isHeld()) {
             Log.v(TAG, "Locking wifi while playing.");
@@ -412,7 +1337,6 @@ public class SqueezeService extends Service {
             wifiLock.release();
         }
         
-        isPlaying.set(state);
         updateOngoingNotification();
 		
         if (callback.get() == null) {
@@ -426,7 +1350,8 @@ public class SqueezeService extends Service {
     }
 
     private void updateOngoingNotification() {
-        boolean playing = isPlaying.get();  
+        PlayerState.Snapshot snapshot = activePlayerSnapshot();
+        boolean playing = snapshot.isPlaying();
         if (!playing) {
             if (!preferences.getBoolean(Preferences.KEY_NOTIFY_OF_CONNECTION, false)) {
                 clearOngoingNotification();
@@ -440,7 +1365,7 @@ public class SqueezeService extends Service {
         Intent showNowPlaying = new Intent(this, SqueezerActivity.class)
             .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
         PendingIntent pIntent = PendingIntent.getActivity(this, 0, showNowPlaying, 0);
-        String song = currentSong.get();
+        String song = snapshot.getSong();
         if (song == null) song = "";
         if (playing) {
             status.setLatestEventInfo(this, "Music Playing", song, pIntent);
@@ -476,18 +1401,22 @@ public class SqueezeService extends Service {
             Log.v(TAG, "Callback attached.");
 	    	SqueezeService.this.callback.set(callback);
 	    	updatePlayerSubscriptionState();
+	    	updateNotificationSubscription();
 	    }
 	    
 	    public void unregisterCallback(IServiceCallback callback) throws RemoteException {
             Log.v(TAG, "Callback detached.");
 	    	SqueezeService.this.callback.compareAndSet(callback, null);
             updatePlayerSubscriptionState();
+            updateNotificationSubscription();
 	    }
 
 	    public int adjustVolumeBy(int delta) throws RemoteException {
-	        if (isConnected()) {
-	            return connectionState.get().adjustVolumeBy(delta);
+	        ConnectionState connection = connectionState.get();
+	        if (connection == null || !connection.isConnected()) {
+	            return 0;
 	        }
+	        return connection.adjustVolumeBy(delta);
         }
 
         public boolean isConnected() throws RemoteException {
@@ -496,70 +1425,50 @@ public class SqueezeService extends Service {
         }
 
         public void startConnect(final String hostPort) throws RemoteException {
-            disconnect();  // if we're already connected to something
-            int colonPos = hostPort.indexOf(":");
-            boolean noPort = colonPos == -1;
-            final int port = noPort? 9090 : Integer.parseInt(hostPort.substring(colonPos + 1));
-            final String host = noPort ? hostPort : hostPort.substring(0, colonPos);
-            
-            ConnectionState newConnection = new ConnnectionState(
-                    currentConnectionGeneration.incrementAndGet(),
-                    host,
-                    port);
-            currentConnectionGeneration.set(newConnection);
-            
-            // Start the off-thread connect.
-            executor.execute(new Runnable() {
-                public void run() {
-                    SqueezeService.this.disconnect();
-                    Socket socket = new Socket();
-                    try {
-                        socket.connect(new InetSocketAddress(host, port),
-                                       4000 /* ms timeout */);
-                        socketRef.set(socket);
-                        Log.d(TAG, "Connected to: " + hostPort);
-                        socketWriter.set(new PrintWriter(socket.getOutputStream(), true));
-                        Log.d(TAG, "writer == " + socketWriter.get());
-                        setConnectionState(true, true);
-                        Log.d(TAG, "connection state broadcasted true.");
-                        onCliPortConnectionEstablished();
-                    } catch (SocketTimeoutException e) {
-                        Log.e(TAG, "Socket timeout connecting to: " + hostPort);
-                        setConnectionState(false, true);
-                    } catch (IOException e) {
-                        Log.e(TAG, "IOException connecting to: " + hostPort);
-                        setConnectionState(false, true);
-                    }
-                }
-
-            });
+            // Already on its way there, e.g. after a warm start; the client
+            // hears when it's done as usual.
+            ConnectionState connection = connectionState.get();
+            if (hostPort.equals(reconnectHostPort) && connection != null &&
+                (connecting.get() || connection.isConnected())) {
+                Log.v(TAG, "Already connecting to: " + hostPort);
+                if (connection.isConnected()) setConnectionState(true, true);
+                return;
+            }
+            stopReconnecting();
+            reconnectBackoff.reset();
+            reconnectHostPort = hostPort;
+            startConnection(hostPort, null);
         }
 
         public void disconnect() throws RemoteException {
+            stopReconnecting();
             if (!isConnected()) return;
             SqueezeService.this.disconnect();
         }
 		
         public boolean togglePausePlay() throws RemoteException {
             ConnectionState connection = connectionState.get();
-            if (connection != null) {
-                return connection.togglePlayPause();
+            if (connection != null && connection.togglePlayPause()) {
+                onPlayingStateChanged(SqueezeService.this.isPlaying());
+                return true;
             }
             return false;
         }
 
         public boolean play() throws RemoteException {
             ConnectionState connection = connectionState.get();
-            if (connection != null) {
-                return connection.play();
+            if (connection != null && connection.play()) {
+                onPlayingStateChanged(true);
+                return true;
             }
             return false;
         }
 
         public boolean stop() throws RemoteException {
             ConnectionState connection = connectionState.get();
-            if (connection != null) {
-                return connection.stop();
+            if (connection != null && connection.stop()) {
+                onPlayingStateChanged(false);
+                return true;
             }
             return false;
         }
@@ -581,12 +1490,16 @@ public class SqueezeService extends Service {
         }
         
         public boolean isPlaying() throws RemoteException {
-            return isPlaying.get();
+            return SqueezeService.this.isPlaying();
         }
 
         public boolean getPlayers(List<String> playerIds, List<String> playerNames)
             throws RemoteException {
-            Map<String, String> players = knownPlayers.get();
+            ConnectionState connection = connectionState.get();
+            if (connection == null) {
+                return false;
+            }
+            Map<String, String> players = connection.getKnownPlayers();
             if (players == null) {
                 return false;
             }
@@ -597,18 +1510,63 @@ public class SqueezeService extends Service {
             return true;
         }
 
+        public void startDiscovery(boolean force) throws RemoteException {
+            SqueezeService.this.startDiscovery(force);
+        }
+
+        public boolean getDiscoveredServers(List<String> hostPorts, List<String> names)
+            throws RemoteException {
+            List<ServerDiscovery.Server> servers = serverDiscovery.getServers();
+            for (ServerDiscovery.Server server : servers) {
+                hostPorts.add(server.hostPort);
+                names.add(server.name);
+            }
+            return !servers.isEmpty();
+        }
+
+        public void setBrowseWindow(String category, int start, int count)
+                throws RemoteException {
+            if (!BrowseCache.isCategory(category)) return;
+            ConnectionState connection = connectionState.get();
+            if (connection == null) return;
+            List<String> commands = connection.getBrowseCache(category)
+                .setWindow(start, count, new ArrayList<String>());
+            if (!commands.isEmpty()) {
+                connection.sendCommand(commands.toArray(new String[commands.size()]));
+            }
+        }
+
+        public int getBrowseItems(String category, int start, int count,
+                List<String> itemIds, List<String> itemNames) throws RemoteException {
+            if (!BrowseCache.isCategory(category)) return -1;
+            ConnectionState connection = connectionState.get();
+            if (connection == null) return -1;
+            return connection.getBrowseCache(category).getItems(start, count, itemIds, itemNames);
+        }
+
+        public int searchLibrary(String query, int limit, List<String> itemCategories,
+                List<String> itemIds, List<String> itemNames) throws RemoteException {
+            LibraryIndex index = libraryIndex;
+            if (index == null) return -1;
+            return index.search(query, limit, itemCategories, itemIds, itemNames);
+        }
+
         public boolean setActivePlayer(String playerId) throws RemoteException {
             return changeActivePlayer(playerId);
         }
 
         public String getActivePlayerId() throws RemoteException {
-            String playerId = activePlayerId.get();
+            String playerId = activePlayerId();
             return playerId == null ? "" : playerId;
         }
 
         public String getActivePlayerName() throws RemoteException {
-            String playerId = activePlayerId.get();
-            Map<String, String> players = knownPlayers.get();
+            ConnectionState connection = connectionState.get();
+            if (connection == null) {
+                return null;
+            }
+            String playerId = connection.getActivePlayerId();
+            Map<String, String> players = connection.getKnownPlayers();
             if (players == null) {
                 return null;
             }
@@ -616,44 +1574,36 @@ public class SqueezeService extends Service {
         }
 
         public String currentAlbum() throws RemoteException {
-            return Util.nonNullString(currentAlbum);
+            return Util.nonNullString(activePlayerSnapshot().getAlbum());
         }
 
         public String currentArtist() throws RemoteException {
-            return Util.nonNullString(currentArtist);
+            return Util.nonNullString(activePlayerSnapshot().getArtist());
         }
 
         public String currentSong() throws RemoteException {
-            return Util.nonNullString(currentSong);
+            return Util.nonNullString(activePlayerSnapshot().getSong());
         }
 
         public String currentAlbumArtUrl() throws RemoteException {
-            Integer port = httpPort.get();
-            if (port == null || port == 0) return "";
-            String artworkTrackId = currentArtworkTrackId.get();
-            if (artworkTrackId != null) {
-                Log.v(TAG, "artwork track ID = " + artworkTrackId);
-                return "http://" + currentHost.get() + ":" + port
-                    + "/music/" + artworkTrackId + "/cover.jpg";
-            } else {
-                // Return the "current album art" URL instead, with the cache-buster
-                // of the song name in it, to force the activity to reload when
-                // listening to e.g. Pandora, where there is no artwork_track_id (tag J)
-                // in the status.
-                return "http://" + currentHost.get() + ":" + port
-                    + "/music/current/cover?player=" + activePlayerId.get()
-                    + "&song=" + URLEncoder.encode(currentSong());
-            }
+            return albumArtUrl(connectionState.get(), activePlayerSnapshot());
+        }
+
+        public NowPlaying getNowPlaying(int knownVersion) throws RemoteException {
+            NowPlaying nowPlaying = SqueezeService.this.getNowPlaying();
+            return nowPlaying.getVersion() == knownVersion ? null : nowPlaying;
+        }
+
+        public String currentArtworkTrackId() throws RemoteException {
+            return Util.nonNullString(activePlayerSnapshot().getArtworkTrackId());
         }
 
         public int getSecondsElapsed() throws RemoteException {
-            Integer seconds = currentTimeSecond.get();
-            return seconds == null ? 0 : seconds.intValue();
+            return activePlayerSnapshot().getSecondsElapsed(SystemClock.elapsedRealtime());
         }
 
         public int getSecondsTotal() throws RemoteException {
-            Integer seconds = currentSongDuration.get();
-            return seconds == null ? 0 : seconds.intValue();
+            return activePlayerSnapshot().getSongDuration();
         }
 
         public void preferenceChanged(String key) throws RemoteException {
@@ -666,53 +1616,90 @@ public class SqueezeService extends Service {
                 debugLogging = preferences.getBoolean(key, false);
                 return;
             }
+            if (Preferences.KEY_AUTO_DISCOVER.equals(key)) {
+                if (preferences.getBoolean(key, false)) SqueezeService.this.startDiscovery(false);
+                return;
+            }
         }
     };
 
-    private class ListeningThread extends Thread {
-        private final Socket socket;
+    private class ListeningThread extends Thread implements CliLineReader.LineHandler {
+        private final ConnectionState connection;
+        private final SocketChannel channel;
+        private final CliCommandPipeline commandPipeline;
         private final int generationNumber; 
-        public ListeningThread(Socket socket, int generationNumber) {
-            this.socket = socket;
-            this.generationNumber = generationNumber;
+        private CliTokenizer tokenizer;
+        private final CliRecordParser playerListParser =
+            new CliRecordParser("playerindex", new PlayerListHandler());
+        private final ListingHandler listingHandler = new ListingHandler();
+        private final CliRecordParser listingParser =
+            new CliRecordParser("id", listingHandler);
+        public ListeningThread(ConnectionState connection) {
+            this.connection = connection;
+            this.channel = connection.getSocketChannel();
+            this.commandPipeline = connection.getCommandPipeline();
+            this.generationNumber = connection.getConnectionGeneration();
         }
 		
         @Override
             public void run() {
-            BufferedReader in;
-            try {
-                in = new BufferedReader(
-                                        new InputStreamReader(socket.getInputStream()),
-                                        128);
-            } catch (IOException e) {
-                Log.v(TAG, "IOException while creating BufferedReader: " + e);
-                SqueezeService.this.disconnect();
-                return;
-            }
+            CliLineReader reader = new CliLineReader(channel);
+            tokenizer = new CliTokenizer();
             IOException exception = null;
             while (true) {
-                String line;
+                boolean open;
                 try {
-                    line = in.readLine();
+                    open = reader.readLines(this);
                 } catch (IOException e) {
-                    line = null;
+                    open = false;
                     exception = e;
                 }
-                if (line == null) {
+                if (!open) {
                     // Socket disconnected.  This is expected
                     // if we're not the main connection generation anymore,
                     // else we should notify about it.
                     if (currentConnectionGeneration.get() == generationNumber) {
                         Log.v(TAG, "Server disconnected; exception=" + exception);
-                        SqueezeService.this.disconnect();
+                        onConnectionLost(generationNumber);
                     } else {
                         // Who cares.
                         Log.v(TAG, "Old generation connection disconnected, as expected.");
                     }
                     return;
                 }
-                SqueezeService.this.onLineReceived(line);
             }
         }
+
+        public void onLineReceived(byte[] line, int offset, int length) {
+            commandPipeline.onLineReceived(line, offset, length);
+            boolean accepted = acceptLine(connection, line, offset, length);
+            connection.countFilteredLine(!accepted);
+            if (!accepted) {
+                if (debugLogging && Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "SKIP: " + Util.latin1String(line, offset, length));
+                }
+                return;
+            }
+            tokenizer.reset(line, offset, length);
+            SqueezeService.this.onLineReceived(tokenizer, line, offset, length);
+        }
+
+        // Player lists and library listings can be arbitrarily long.
+        public CliRecordParser streamLine(byte[] token, int offset, int length) {
+            tokenizer.reset(token, offset, length);
+            if (!tokenizer.next()) return null;
+            if (tokenizer.tokenEquals("players")) {
+                return playerListParser;
+            }
+            if (tokenizer.tokenId(BROWSE_COMMANDS) != CliKeyTable.UNKNOWN) {
+                listingHandler.startListing(tokenizer.tokenString());
+                return listingParser;
+            }
+            return null;
+        }
+
+        public void onStreamedLineEnd(byte[] header, int offset, int length) {
+            commandPipeline.onLineReceived(header, offset, length);
+        }
     }
  }
@@ -1,9 +1,5 @@
 package com.danga.squeezer;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -23,7 +19,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.graphics.drawable.Drawable;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -70,6 +66,7 @@ public class SqueezerActivity extends Activity {
     private Toast activeToast;
     private ImageView albumArt;
     private SeekBar seekBar;
+    private AlbumArtCache albumArtCache;
 
     private final ScheduledThreadPoolExecutor backgroundExecutor = new ScheduledThreadPoolExecutor(1);
 	
@@ -79,6 +76,9 @@ public class SqueezerActivity extends Activity {
         	Log.v(TAG, "Service bound");
         	uiThreadHandler.post(new Runnable() {
         	    public void run() {
+        	        // A new service process numbers its versions from 1
+        	        // again, so what we hold means nothing to it.
+        	        nowPlaying = NowPlaying.EMPTY;
         	        updateUIFromServiceState();
 
         	        // Assume they want to connect...
@@ -87,6 +87,7 @@ public class SqueezerActivity extends Activity {
         	            if (ipPort != null) {
         	                startVisibleConnectionTo(ipPort);
         	            }
+        	            maybeStartDiscovery(false);
         	        }
         	    }
         	});
@@ -102,6 +103,10 @@ public class SqueezerActivity extends Activity {
         };
     };
     
+    // What the service last told us is playing.  Only touched from the
+    // UI thread; see fetchNowPlaying().  Reset on every bind.
+    private NowPlaying nowPlaying = NowPlaying.EMPTY;
+
     // Where we're connecting to.
     private boolean connectInProgress = false;
     private String connectingTo = null;
@@ -128,6 +133,7 @@ public class SqueezerActivity extends Activity {
     @Override public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
+        albumArtCache = AlbumArtCache.getInstance(this);
         
         // Intercept volume keys to control SqueezeCenter volume.
         // TODO: make this actually work.  It's something like this, but not quite.
@@ -156,6 +162,7 @@ public class SqueezerActivity extends Activity {
         nextButton = (ImageButton) findViewById(R.id.next);
         prevButton = (ImageButton) findViewById(R.id.prev);
         albumArt = (ImageView) findViewById(R.id.album);
+        albumArtCache.setTargetSize(albumArt.getLayoutParams().width);
         currentTime = (TextView) findViewById(R.id.currenttime);
         totalTime = (TextView) findViewById(R.id.totaltime);
         seekBar = (SeekBar) findViewById(R.id.seekbar);
@@ -240,6 +247,9 @@ public class SqueezerActivity extends Activity {
                 connectInProgress = false;
                 if (!connected) {
                   Toast.makeText(this, "Connection failed.  Check settings.", Toast.LENGTH_LONG).show();
+                  // Maybe the server moved; onServersDiscovered() follows it.
+                  // What's cached may predate the move, so probe afresh.
+                  maybeStartDiscovery(true);
                   return;
                 }
             }
@@ -329,6 +339,7 @@ public class SqueezerActivity extends Activity {
                 if (ipPort != null) {
                     startVisibleConnectionTo(ipPort);
                 }
+                maybeStartDiscovery(false);
             }
         }
     }
@@ -347,14 +358,25 @@ public class SqueezerActivity extends Activity {
             return;
         }
 
+        NowPlaying nowPlaying = fetchNowPlaying();
+        setTitleForPlayer(nowPlaying.getPlayerName());
+        isPlaying.set(nowPlaying.isPlaying());
+        updatePlayPauseIcon();
+    }
+
+    // Should only be called from the UI thread.  One binder call, which
+    // carries nothing back if the service has nothing new.
+    private NowPlaying fetchNowPlaying() {
+        if (serviceStub == null) {
+            return nowPlaying;
+        }
         try {
-            setTitleForPlayer(serviceStub.getActivePlayerName());
-            isPlaying.set(serviceStub.isPlaying());
-            updatePlayPauseIcon();
+            NowPlaying updated = serviceStub.getNowPlaying(nowPlaying.getVersion());
+            if (updated != null) nowPlaying = updated;
         } catch (RemoteException e) {
-            Log.e(TAG, "Service exception: " + e);
+            Log.e(TAG, "Service exception in getNowPlaying(): " + e);
         }
-       
+        return nowPlaying;
     }
     
     private void updateTimeDisplayTo(int secondsIn, int secondsTotal) {
@@ -368,54 +390,58 @@ public class SqueezerActivity extends Activity {
     
     // Should only be called from the UI thread.
     private void updateSongInfoFromService() {
-        artistText.setText(getServiceCurrentArtist());
-        albumText.setText(getServiceCurrentAlbum());
-        trackText.setText(getServiceCurrentSong());
-        updateTimeDisplayTo(getSecondsElapsed(), getSecondsTotal());
-        updateAlbumArtIfNeeded();
+        NowPlaying nowPlaying = fetchNowPlaying();
+        artistText.setText(nowPlaying.getArtist());
+        albumText.setText(nowPlaying.getAlbum());
+        trackText.setText(nowPlaying.getSong());
+        updateTimeDisplayTo(nowPlaying.getSecondsElapsed(SystemClock.elapsedRealtime()),
+                nowPlaying.getSecondsTotal());
+        updateAlbumArtIfNeeded(nowPlaying);
     }
 
     // Should only be called from the UI thread.
-    private void updateAlbumArtIfNeeded() {
-        final String albumArtUrl = getCurrentAlbumArtUrl();
+    private void updateAlbumArtIfNeeded(NowPlaying nowPlaying) {
+        final String albumArtUrl = nowPlaying.getAlbumArtUrl();
         if (Util.atomicStringUpdated(currentAlbumArtUrl, albumArtUrl)) {
+            if (albumArtUrl.length() == 0) {
+                albumArt.setImageDrawable(null);
+                return;
+            }
+            final String artworkTrackId = nowPlaying.getArtworkTrackId();
+            if (artworkTrackId.length() > 0) {
+                Bitmap cached = albumArtCache.getFromMemory(artworkTrackId);
+                if (cached != null) {
+                    albumArt.setImageBitmap(cached);
+                    return;
+                }
+            }
             albumArt.setImageDrawable(null);
-            if (albumArtUrl != null && albumArtUrl.length() > 0) {
-                backgroundExecutor.execute(new Runnable() { 
-                    public void run() {
-                        if (!albumArtUrl.equals(currentAlbumArtUrl.get())) {
-                            // Bail out before fetch the resource if the song
-                            // album art has changed since this Runnable got
-                            // scheduled.
-                            return;
-                        }
-                        URL url;
-                        InputStream inputStream = null;
-                        boolean gotContent = false;
-                        try {
-                            url = new URL(albumArtUrl);
-                            inputStream = (InputStream) url.getContent();
-                            gotContent = true;
-                        } catch (MalformedURLException e) {
-                        } catch (IOException e) {
-                        } 
-                        if (!gotContent) {
-                            return;
-                        }
-                        final Drawable drawable = Drawable.createFromStream(inputStream, "src");
-                        uiThreadHandler.post(new Runnable() {
-                            public void run() {
-                                if (albumArtUrl.equals(currentAlbumArtUrl.get())) {
-                                    // Only set the image if the song art hasn't changed since we
-                                    // started and finally fetched the image over the network
-                                    // and decoded it.
-                                    albumArt.setImageDrawable(drawable);
-                                }
-                            }
-                        });
+            backgroundExecutor.execute(new Runnable() { 
+                public void run() {
+                    if (!albumArtUrl.equals(currentAlbumArtUrl.get())) {
+                        // Bail out before fetch the resource if the song
+                        // album art has changed since this Runnable got
+                        // scheduled.
+                        return;
                     }
-                });
-            }
+                    final Bitmap bitmap = artworkTrackId.length() > 0
+                        ? albumArtCache.get(artworkTrackId, albumArtUrl)
+                        : albumArtCache.getUncached(albumArtUrl);
+                    if (bitmap == null) {
+                        return;
+                    }
+                    uiThreadHandler.post(new Runnable() {
+                        public void run() {
+                            if (albumArtUrl.equals(currentAlbumArtUrl.get())) {
+                                // Only set the image if the song art hasn't changed since we
+                                // started and finally fetched the image over the network
+                                // and decoded it.
+                                albumArt.setImageBitmap(bitmap);
+                            }
+                        }
+                    });
+                }
+            });
         }
     }
     
@@ -430,79 +456,6 @@ public class SqueezerActivity extends Activity {
         }
         return "";
     }
-    
-    private int getSecondsElapsed() {
-        if (serviceStub == null) {
-            return 0;
-        }
-        try {
-            return serviceStub.getSecondsElapsed();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return 0;
-    }
-    
-    private int getSecondsTotal() {
-        if (serviceStub == null) {
-            return 0;
-        }
-        try {
-            return serviceStub.getSecondsTotal();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return 0;
-    }
-    
-    private String getServiceCurrentSong() {
-        if (serviceStub == null) {
-            return "";
-        }
-        try {
-            return serviceStub.currentSong();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return "";
-    }
-
-    private String getCurrentAlbumArtUrl() {
-        if (serviceStub == null) {
-            return "";
-        }
-        try {
-            return serviceStub.currentAlbumArtUrl();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return "";
-    }
-
-    private String getServiceCurrentAlbum() {
-        if (serviceStub == null) {
-            return "";
-        }
-        try {
-            return serviceStub.currentAlbum();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return "";
-    }
-    
-    private String getServiceCurrentArtist() {
-        if (serviceStub == null) {
-            return "";
-        }
-        try {
-            return serviceStub.currentArtist();
-        } catch (RemoteException e) {
-            Log.e(TAG, "Service exception in isConnected(): " + e);
-        }
-        return "";
-    }
-
 
     private boolean isConnected() {
         if (serviceStub == null) {
@@ -698,13 +651,64 @@ public class SqueezerActivity extends Activity {
         }
         String ipPort = getConfiguredCliIpPort();
         if (ipPort == null) {
-            SettingsActivity.show(this);
+            if (isAutoDiscoverEnabled()) {
+                // onServersDiscovered() connects to the first one found.
+                Toast.makeText(this, "Looking for servers...", Toast.LENGTH_SHORT).show();
+                maybeStartDiscovery(false);
+            } else {
+                SettingsActivity.show(this);
+            }
             return;
         }
         Log.v(TAG, "User-initiated connect to: " + ipPort);
         startVisibleConnectionTo(ipPort);
     }
     
+    private boolean isAutoDiscoverEnabled() {
+        final SharedPreferences preferences = getSharedPreferences(Preferences.NAME, 0);
+        return preferences.getBoolean(Preferences.KEY_AUTO_DISCOVER, false);
+    }
+
+    // Runs in the background; the configured server (the last one that
+    // worked) is connected to meanwhile, without waiting for it.
+    private void maybeStartDiscovery(boolean force) {
+        if (serviceStub == null || !isAutoDiscoverEnabled()) return;
+        try {
+            serviceStub.startDiscovery(force);
+        } catch (RemoteException e) {
+            Log.e(TAG, "error starting discovery: " + e);
+        }
+    }
+
+    // Should only be called from the UI thread.  If we're neither connected
+    // nor connecting, and the configured server didn't answer the
+    // discovery, switch to one that did and remember it.
+    private void onServersDiscovered() {
+        if (serviceStub == null || isConnected() || connectInProgress) return;
+        List<String> hostPorts = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        try {
+            if (!serviceStub.getDiscoveredServers(hostPorts, names)) {
+                Log.v(TAG, "No servers discovered.");
+                return;
+            }
+        } catch (RemoteException e) {
+            return;
+        }
+        String ipPort = getConfiguredCliIpPort();
+        if (ipPort != null) {
+            String withPort = ipPort.indexOf(':') == -1 ? ipPort + ":9090" : ipPort;
+            if (hostPorts.contains(withPort)) return;
+        }
+        String discovered = hostPorts.get(0);
+        Log.v(TAG, "Switching to discovered server " + names.get(0) + " at " + discovered);
+        SharedPreferences.Editor editor =
+            getSharedPreferences(Preferences.NAME, 0).edit();
+        editor.putString(Preferences.KEY_SERVERADDR, discovered);
+        editor.commit();
+        startVisibleConnectionTo(discovered);
+    }
+
     private void startVisibleConnectionTo(String ipPort) {
         connectInProgress = true;
         connectingTo = ipPort;
@@ -730,6 +734,14 @@ public class SqueezerActivity extends Activity {
                     });
             }
 
+            public void onServersDiscovered() throws RemoteException {
+                uiThreadHandler.post(new Runnable() {
+                        public void run() {
+                            SqueezerActivity.this.onServersDiscovered();
+                        }
+                    });
+            }
+
             public void onPlayersDiscovered() throws RemoteException {
                 List<String> playerIds = new ArrayList<String>();
                 List<String> playerNames = new ArrayList<String>();
@@ -784,5 +796,19 @@ public class SqueezerActivity extends Activity {
                 SqueezerActivity.this.secondsTotal = secondsTotal;
                 uiThreadHandler.sendEmptyMessage(UPDATE_TIME);
             }
+
+            public void onPlayerAdded(String playerId, String playerName)
+                    throws RemoteException {
+                Log.v(TAG, "player added: " + playerId + ", " + playerName);
+            }
+
+            public void onPlayerRemoved(String playerId) throws RemoteException {
+                Log.v(TAG, "player removed: " + playerId);
+            }
+
+            public void onBrowseItemsLoaded(String category, int start, int count, int total)
+                    throws RemoteException {
+                // No browse UI yet.
+            }
         };
 }
@@ -1,5 +1,6 @@
 package com.danga.squeezer;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Formatter;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicReference;
@@ -23,6 +24,25 @@ public class Util {
         return false;
     }
 
+    public static String nonNullString(String string) {
+        return string == null ? "" : string;
+    }
+
+    // Returns current if it already holds chars[0, length), else a new
+    // String.  Callers can then detect a change with a reference compare.
+    public static String updatedString(String current, char[] chars, int length) {
+        if (contentEquals(current, chars, length)) return current;
+        return new String(chars, 0, length);
+    }
+
+    public static boolean contentEquals(String value, char[] chars, int length) {
+        if (value == null || value.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != chars[i]) return false;
+        }
+        return true;
+    }
+
     public static int parseDecimalIntOrZero(String value) {
         int decimalPoint = value.indexOf('.');
         if (decimalPoint != -1) value = value.substring(0, decimalPoint);
@@ -34,6 +54,16 @@ public class Util {
             return 0;
         }
     }
+
+    // CLI lines are ASCII (the server percent-encodes everything else), so
+    // this shows them byte for byte.
+    public static String latin1String(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
     
     private static StringBuilder sFormatBuilder = new StringBuilder();
     private static Formatter sFormatter = new Formatter(sFormatBuilder, Locale.getDefault());
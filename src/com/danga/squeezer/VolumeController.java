@@ -0,0 +1,141 @@
+package com.danga.squeezer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Dead-reckons the active player's volume so adjustVolumeBy() can answer
+// immediately, and turns bursts of presses (e.g. a held
+// RepeatingImageButton) into at most one absolute "mixer volume N"
+// command per SEND_INTERVAL_MS.
+//
+// The prediction starts from the last server-confirmed volume (status
+// "mixer volume" or "prefset server volume" lines) plus whatever local
+// changes haven't been confirmed yet.  Until the server has told us a
+// volume for this player we don't guess: presses are summed and sent as
+// a relative "mixer volume +N/-N" instead.
+public class VolumeController {
+    private static final String TAG = "VolumeController";
+    private static final long SEND_INTERVAL_MS = 200;
+
+    // After this long without hearing back about our last command, trust
+    // whatever the server says, even if it isn't what we asked for.
+    private static final long CONFIRM_TIMEOUT_MS = 2000;
+
+    private static final int UNKNOWN = -1;
+
+    private final ConnectionState connection;
+    private final ScheduledExecutorService executor;
+
+    // Guarded by this:
+    private String playerId;
+    private int confirmedVolume = UNKNOWN;
+    private int predictedVolume = UNKNOWN;
+    private int sentVolume = UNKNOWN;  // last value sent, until confirmed
+    private int pendingDelta = 0;  // unsent relative change, volume unknown
+    private long lastSendTime = 0;
+    private boolean sendScheduled = false;
+
+    private final Runnable sendRunnable = new Runnable() {
+        public void run() {
+            sendPredictedVolume();
+        }
+    };
+
+    public VolumeController(ConnectionState connection, ScheduledExecutorService executor) {
+        this.connection = connection;
+        this.executor = executor;
+    }
+
+    // Forget everything we knew about the previous player.
+    public synchronized void reset(String playerId) {
+        this.playerId = playerId;
+        confirmedVolume = UNKNOWN;
+        predictedVolume = UNKNOWN;
+        sentVolume = UNKNOWN;
+        pendingDelta = 0;
+    }
+
+    // Returns the predicted new volume, or -1 if we don't know the
+    // player's volume yet.
+    public synchronized int adjustBy(int delta) {
+        int base = predictedVolume != UNKNOWN ? predictedVolume : confirmedVolume;
+        if (base == UNKNOWN) {
+            pendingDelta += delta;
+        } else {
+            predictedVolume = clamp(base + delta);
+        }
+        if (!sendScheduled) {
+            sendScheduled = true;
+            long wait = lastSendTime + SEND_INTERVAL_MS - SystemClock.elapsedRealtime();
+            if (wait <= 0) {
+                executor.execute(sendRunnable);
+            } else {
+                executor.schedule(sendRunnable, wait, TimeUnit.MILLISECONDS);
+            }
+        }
+        return predictedVolume;
+    }
+
+    public synchronized int getVolume() {
+        if (predictedVolume != UNKNOWN) return predictedVolume;
+        return confirmedVolume;
+    }
+
+    // Called from the ListeningThread with a volume the server reported
+    // for the active player.
+    public synchronized void onServerVolume(int volume) {
+        confirmedVolume = volume;
+        if (pendingDelta != 0) {
+            // Presses made before we knew the volume haven't gone out yet;
+            // they can now be sent as an absolute value.
+            predictedVolume = clamp(volume + pendingDelta);
+            pendingDelta = 0;
+            return;
+        }
+        if (sendScheduled) {
+            // More local changes are about to go out; keep predicting.
+            return;
+        }
+        if (sentVolume == UNKNOWN || sentVolume == volume ||
+            SystemClock.elapsedRealtime() - lastSendTime > CONFIRM_TIMEOUT_MS) {
+            sentVolume = UNKNOWN;
+            predictedVolume = volume;
+        }
+    }
+
+    private static int clamp(int volume) {
+        return Math.max(0, Math.min(100, volume));
+    }
+
+    private void sendPredictedVolume() {
+        String playerId;
+        int volume;
+        int delta;
+        synchronized (this) {
+            sendScheduled = false;
+            playerId = this.playerId;
+            volume = predictedVolume;
+            delta = pendingDelta;
+            pendingDelta = 0;
+            if (playerId == null) return;
+            if (volume == UNKNOWN) {
+                if (delta == 0) return;
+            } else {
+                if (volume == sentVolume) return;
+                sentVolume = volume;
+            }
+            lastSendTime = SystemClock.elapsedRealtime();
+        }
+        if (volume == UNKNOWN) {
+            Log.v(TAG, "Changing volume by: " + delta);
+            connection.sendPlayerCommand(playerId, "mixer volume " +
+                                         (delta > 0 ? "%2B" + delta : String.valueOf(delta)));
+            return;
+        }
+        Log.v(TAG, "Setting volume to: " + volume);
+        connection.sendPlayerCommand(playerId, "mixer volume " + volume);
+    }
+}
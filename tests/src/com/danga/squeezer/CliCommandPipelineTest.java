@@ -0,0 +1,103 @@
+package com.danga.squeezer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class CliCommandPipelineTest extends TestCase {
+    private static class RecordingChannel implements WritableByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        public synchronized int write(ByteBuffer src) {
+            int n = src.remaining();
+            while (src.hasRemaining()) written.write(src.get());
+            return n;
+        }
+
+        public synchronized String getWritten() {
+            return written.toString();
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    private ScheduledThreadPoolExecutor executor;
+    private RecordingChannel channel;
+    private CliCommandPipeline pipeline;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = new ScheduledThreadPoolExecutor(1);
+        channel = new RecordingChannel();
+        pipeline = new CliCommandPipeline(executor, 0);
+        pipeline.setChannel(channel);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pipeline.close();
+        executor.shutdownNow();
+    }
+
+    private void receive(String line) {
+        byte[] bytes = ("xx" + line).getBytes();
+        pipeline.onLineReceived(bytes, 2, line.length());
+    }
+
+    // Waits until the commands are written, so they're outstanding.
+    private void awaitWritten(String expected) throws Exception {
+        for (int i = 0; i < 100 && !channel.getWritten().equals(expected); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, channel.getWritten());
+    }
+
+    public void testCoalescedWriteAndReplies() throws Exception {
+        Future<String> a = pipeline.send("00%3A04 status - 1 tags:ylqwaJ");
+        Future<String> b = pipeline.send("version ?");
+        awaitWritten("00%3A04 status - 1 tags:ylqwaJ\nversion ?\n");
+
+        receive("version 7.3.3");
+        assertEquals("version 7.3.3", b.get(1, TimeUnit.SECONDS));
+        assertFalse(a.isDone());
+        receive("00%3A04 status - 1 tags%3AylqwaJ mode%3Aplay");
+        assertEquals("00%3A04 status - 1 tags%3AylqwaJ mode%3Aplay",
+                a.get(1, TimeUnit.SECONDS));
+    }
+
+    // The server percent-encodes the ',' in what it echoes.
+    public void testReservedCharactersEndThePrefix() throws Exception {
+        Future<String> subscribe = pipeline.send("subscribe client,name,rescan");
+        awaitWritten("subscribe client,name,rescan\n");
+        receive("subscribe client%2Cname%2Crescan");
+        assertEquals("subscribe client%2Cname%2Crescan", subscribe.get(1, TimeUnit.SECONDS));
+    }
+
+    // A request nothing answers mustn't hold up the ones after it.
+    public void testUnansweredRequestDoesNotBlockLaterOnes() throws Exception {
+        Future<String> unanswered = pipeline.send("players 0 50");
+        Future<String> version = pipeline.send("version ?");
+        awaitWritten("players 0 50\nversion ?\n");
+        receive("version 7.3.3");
+        assertEquals("version 7.3.3", version.get(1, TimeUnit.SECONDS));
+        assertFalse(unanswered.isDone());
+    }
+
+    public void testCloseFailsOutstanding() throws Exception {
+        Future<String> version = pipeline.send("version ?");
+        awaitWritten("version ?\n");
+        pipeline.close();
+        assertNull(version.get(1, TimeUnit.SECONDS));
+        assertNull(pipeline.send("version ?").get(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,61 @@
+package com.danga.squeezer;
+
+import junit.framework.TestCase;
+
+public class CliKeyTableTest extends TestCase {
+    private static int lookup(CliKeyTable table, String key) {
+        byte[] bytes = ("  " + key + " ").getBytes();
+        return table.lookup(bytes, 2, 2 + key.length());
+    }
+
+    public void testIdsAreArgumentIndexes() {
+        CliKeyTable table = new CliKeyTable("play", "stop", "pause", "status");
+        assertEquals(0, lookup(table, "play"));
+        assertEquals(1, lookup(table, "stop"));
+        assertEquals(2, lookup(table, "pause"));
+        assertEquals(3, lookup(table, "status"));
+        assertEquals(CliKeyTable.UNKNOWN, lookup(table, "playlist"));
+        assertEquals(CliKeyTable.UNKNOWN, lookup(table, "pla"));
+        assertEquals(CliKeyTable.UNKNOWN, lookup(table, ""));
+    }
+
+    public void testEmptyTable() {
+        assertEquals(CliKeyTable.UNKNOWN, lookup(new CliKeyTable(), "play"));
+    }
+
+    public void testDuplicateKeyRejected() {
+        try {
+            new CliKeyTable("play", "play");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    // "Aa" and "BB" have the same String.hashCode(), as does every string
+    // made of them, so these all collide under a plain 31-polynomial.
+    public void testKeysCollidingUnderPolynomialHash() {
+        String[] keys = new String[16];
+        for (int i = 0; i < keys.length; i++) {
+            StringBuilder sb = new StringBuilder("x");
+            for (int bit = 0; bit < 4; bit++) {
+                sb.append((i & (1 << bit)) != 0 ? "BB" : "Aa");
+            }
+            keys[i] = sb.toString();
+        }
+        CliKeyTable table = new CliKeyTable(keys);
+        assertTrue(table.isPerfectHash());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], i, lookup(table, keys[i]));
+        }
+        assertEquals(CliKeyTable.UNKNOWN, lookup(table, "xAaAaAaAb"));
+    }
+
+    public void testPlayerIdLikeKeys() {
+        CliKeyTable table = new CliKeyTable("xAa", "xBB",
+                "00%3A04%3A20%3A12%3A34%3A56", "00%3A04%3A20%3A12%3A34%3A57");
+        assertEquals(0, lookup(table, "xAa"));
+        assertEquals(1, lookup(table, "xBB"));
+        assertEquals(2, lookup(table, "00%3A04%3A20%3A12%3A34%3A56"));
+        assertEquals(3, lookup(table, "00%3A04%3A20%3A12%3A34%3A57"));
+    }
+}
@@ -0,0 +1,124 @@
+package com.danga.squeezer;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class HttpConnectionPoolTest extends TestCase {
+    // Answers each GET on one keep-alive connection: 404 for paths
+    // starting "/missing", otherwise the path as the body.
+    private static class FakeServer extends Thread {
+        final ServerSocket serverSocket;
+        volatile int connections = 0;
+
+        FakeServer() throws IOException {
+            serverSocket = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    connections++;
+                    serve(socket);
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String path = line.split(" ")[1];
+                while ((line = in.readLine()) != null && line.length() > 0) {}
+                byte[] body = path.getBytes("ISO-8859-1");
+                String status = path.startsWith("/missing") ? "404 Not Found" : "200 OK";
+                out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + body.length
+                           + "\r\n\r\n").getBytes("ISO-8859-1"));
+                out.write(body);
+                out.flush();
+            }
+            socket.close();
+        }
+
+        void shutdown() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private FakeServer server;
+    private HttpConnectionPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeServer();
+        server.start();
+        pool = new HttpConnectionPool("127.0.0.1", server.getPort());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.close();
+        server.shutdown();
+    }
+
+    public void testGetReusesConnection() throws IOException {
+        assertEquals("/a", new String(pool.get("/a"), "ISO-8859-1"));
+        assertEquals("/b", new String(pool.get("http://127.0.0.1:" + server.getPort() + "/b"),
+                "ISO-8859-1"));
+        assertEquals(1, server.connections);
+        assertEquals(1, pool.getReusedConnectionCount());
+    }
+
+    public void testGetThrowsOnNotFound() throws IOException {
+        try {
+            pool.get("/missing");
+            fail();
+        } catch (FileNotFoundException e) {
+        }
+        // The connection survives it.
+        assertEquals("/a", new String(pool.get("/a"), "ISO-8859-1"));
+        assertEquals(1, server.connections);
+    }
+
+    public void testNotFoundKeepsRestOfBatch() throws IOException {
+        List<String> urls = new ArrayList<String>();
+        urls.add("/a");
+        urls.add("/missing");
+        urls.add("/c");
+        List<byte[]> bodies = pool.getAll(urls);
+        assertEquals(3, bodies.size());
+        assertEquals("/a", new String(bodies.get(0), "ISO-8859-1"));
+        assertNull(bodies.get(1));
+        assertEquals("/c", new String(bodies.get(2), "ISO-8859-1"));
+        assertEquals(1, server.connections);
+    }
+
+    public void testClosedPoolFails() {
+        pool.close();
+        try {
+            pool.get("/a");
+            fail();
+        } catch (IOException e) {
+        }
+    }
+}
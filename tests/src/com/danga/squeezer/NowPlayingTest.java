@@ -0,0 +1,59 @@
+package com.danga.squeezer;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+
+import junit.framework.TestCase;
+
+public class NowPlayingTest extends TestCase {
+    private static final PlayerState.Snapshot SNAPSHOT = new PlayerState.Snapshot(
+            "Song", null, "Album", "17", 10000, SystemClock.elapsedRealtime(), 1, 200, true);
+
+    public void testEmptyIsNeverNull() {
+        NowPlaying empty = NowPlaying.EMPTY;
+        assertEquals(0, empty.getVersion());
+        assertEquals("", empty.getPlayerId());
+        assertEquals("", empty.getSong());
+        assertEquals("", empty.getArtworkTrackId());
+        assertEquals("", empty.getAlbumArtUrl());
+        assertFalse(empty.isPlaying());
+    }
+
+    public void testSameAs() {
+        NowPlaying nowPlaying = new NowPlaying(3, "id", "Kitchen", null, SNAPSHOT);
+        assertTrue(nowPlaying.sameAs("id", "Kitchen", "", SNAPSHOT));
+        assertTrue(nowPlaying.sameAs("id", "Kitchen", null, SNAPSHOT));
+        assertFalse(nowPlaying.sameAs("id", "Office", null, SNAPSHOT));
+        assertFalse(nowPlaying.sameAs("id", "Kitchen", "http://host/cover.jpg", SNAPSHOT));
+        // A new snapshot is a change, even with the same contents.
+        PlayerState.Snapshot copy = new PlayerState.Snapshot("Song", null, "Album", "17",
+                10000, 0, 1, 200, true);
+        assertFalse(nowPlaying.sameAs("id", "Kitchen", null, copy));
+    }
+
+    public void testParcelRoundTrip() {
+        NowPlaying nowPlaying = new NowPlaying(3, "id", "Kitchen", "http://host/cover.jpg",
+                SNAPSHOT);
+        Parcel parcel = Parcel.obtain();
+        try {
+            nowPlaying.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            NowPlaying copy = NowPlaying.CREATOR.createFromParcel(parcel);
+            assertEquals(3, copy.getVersion());
+            assertEquals("id", copy.getPlayerId());
+            assertEquals("Kitchen", copy.getPlayerName());
+            assertEquals("http://host/cover.jpg", copy.getAlbumArtUrl());
+            assertEquals("Song", copy.getSong());
+            assertEquals("", copy.getArtist());
+            assertEquals("Album", copy.getAlbum());
+            assertEquals("17", copy.getArtworkTrackId());
+            assertEquals(200, copy.getSecondsTotal());
+            assertTrue(copy.isPlaying());
+            // The clock keeps running on the receiving side.
+            long later = SystemClock.elapsedRealtime() + 5000;
+            assertEquals(nowPlaying.getSecondsElapsed(later), copy.getSecondsElapsed(later));
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
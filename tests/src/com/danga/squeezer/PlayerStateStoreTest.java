@@ -0,0 +1,149 @@
+package com.danga.squeezer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class PlayerStateStoreTest extends TestCase {
+    // Runs saves inline, counting them.
+    private static class CountingExecutor extends AbstractExecutorService {
+        int executed = 0;
+
+        public void execute(Runnable command) {
+            executed++;
+            command.run();
+        }
+
+        public void shutdown() {
+        }
+
+        public List<Runnable> shutdownNow() {
+            return null;
+        }
+
+        public boolean isShutdown() {
+            return false;
+        }
+
+        public boolean isTerminated() {
+            return false;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private static final String PLAYER = "00:04:20:05:09:36";
+
+    private File file;
+    private CountingExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("players", ".state");
+        file.delete();
+        executor = new CountingExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static PlayerState.Snapshot snapshot(String song, int timeMillis, long timeBase,
+            boolean playing) {
+        return new PlayerState.Snapshot(song, "Artist", "Album", "17",
+                timeMillis, timeBase, 1, 200, playing);
+    }
+
+    public void testLoadWithoutFile() {
+        PlayerStateStore store = new PlayerStateStore(file, executor);
+        store.load();
+        assertTrue(store.snapshots().isEmpty());
+    }
+
+    public void testSaveLoadRoundTrip() {
+        PlayerStateStore store = new PlayerStateStore(file, executor);
+        store.onSnapshotChanged(PLAYER, new PlayerState.Snapshot("Song", null, "Album", null,
+                10000, 0, 1, 200, false));
+        store.onSnapshotChanged("other", snapshot("Other song", 0, 0, false));
+        assertTrue(file.exists());
+
+        PlayerStateStore loaded = new PlayerStateStore(file, executor);
+        loaded.load();
+        Map<String, PlayerState.Snapshot> snapshots = loaded.snapshots();
+        assertEquals(2, snapshots.size());
+        PlayerState.Snapshot snapshot = snapshots.get(PLAYER);
+        assertEquals("Song", snapshot.getSong());
+        assertNull(snapshot.getArtist());
+        assertEquals("Album", snapshot.getAlbum());
+        assertNull(snapshot.getArtworkTrackId());
+        assertEquals(200, snapshot.getSongDuration());
+        assertFalse(snapshot.isPlaying());
+        assertEquals(10, snapshot.getSecondsElapsed(0));
+        assertEquals("Other song", snapshots.get("other").getSong());
+    }
+
+    public void testSameSongDoesNotSave() {
+        PlayerStateStore store = new PlayerStateStore(file, executor);
+        store.onSnapshotChanged(PLAYER, snapshot("Song", 0, 0, true));
+        assertEquals(1, executor.executed);
+        store.onSnapshotChanged(PLAYER, snapshot("Song", 5000, 5000, false));
+        assertEquals(1, executor.executed);
+        store.onSnapshotChanged(PLAYER, PlayerState.Snapshot.EMPTY);
+        assertEquals(1, executor.executed);
+        store.onSnapshotChanged(PLAYER, snapshot("Next song", 0, 6000, true));
+        assertEquals(2, executor.executed);
+    }
+
+    public void testBadFileIsIgnored() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x12345678);
+        out.close();
+        PlayerStateStore store = new PlayerStateStore(file, executor);
+        store.load();
+        assertTrue(store.snapshots().isEmpty());
+    }
+
+    private static PlayerState.Snapshot reload(PlayerState.Snapshot snapshot,
+            long savedNow, long savedWallNow, long now, long wallNow) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        snapshot.writeTo(out, savedNow, savedWallNow);
+        out.close();
+        return PlayerState.Snapshot.readFrom(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())), now, wallNow);
+    }
+
+    // elapsedRealtime restarts at boot; the wall clock carries the gap.
+    public void testPlayingClockRunsOnAcrossRestart() throws IOException {
+        PlayerState.Snapshot playing = snapshot("Song", 10000, 1000, true);
+        PlayerState.Snapshot loaded = reload(playing, 3000, 1000000, 500, 1030000);
+        assertEquals(42000, loaded.getMillisElapsed(500));
+        assertEquals(43000, loaded.getMillisElapsed(1500));
+    }
+
+    public void testPausedClockStaysPut() throws IOException {
+        PlayerState.Snapshot paused = snapshot("Song", 10000, 1000, false);
+        PlayerState.Snapshot loaded = reload(paused, 3000, 1000000, 500, 1030000);
+        assertEquals(10000, loaded.getMillisElapsed(500));
+        assertEquals(10000, loaded.getMillisElapsed(90000));
+    }
+
+    public void testClockStopsAtEndOfSong() throws IOException {
+        PlayerState.Snapshot playing = snapshot("Song", 10000, 1000, true);
+        PlayerState.Snapshot loaded = reload(playing, 1000, 1000000, 500, 2000000);
+        assertEquals(200000, loaded.getMillisElapsed(500));
+    }
+}
@@ -0,0 +1,66 @@
+package com.danga.squeezer;
+
+import junit.framework.TestCase;
+
+public class PlayerStateTest extends TestCase {
+    private static PlayerState.Snapshot snapshot(String song, int timeMillis, long timeBase,
+            boolean playing) {
+        return new PlayerState.Snapshot(song, "Artist", "Album", "17",
+                timeMillis, timeBase, 1, 200, playing);
+    }
+
+    public void testExtrapolatedClockCountsAsSame() {
+        PlayerState.Snapshot before = snapshot("Song", 10000, 1000, true);
+        // Re-anchored by the next status line, 5s on and 300ms apart.
+        PlayerState.Snapshot after = snapshot("Song", 15300, 6000, true);
+        assertFalse(after.equals(before));
+        assertTrue(after.sameAs(before, 6000));
+    }
+
+    public void testClockJumpIsNotSame() {
+        PlayerState.Snapshot before = snapshot("Song", 10000, 1000, true);
+        PlayerState.Snapshot seeked = snapshot("Song", 60000, 6000, true);
+        assertFalse(seeked.sameAs(before, 6000));
+    }
+
+    public void testModeAndSongChangesAreNotSame() {
+        PlayerState.Snapshot before = snapshot("Song", 10000, 1000, true);
+        assertFalse(snapshot("Song", 10000, 1000, false).sameAs(before, 1000));
+        assertFalse(snapshot("Other", 10000, 1000, true).sameAs(before, 1000));
+        assertFalse(new PlayerState.Snapshot("Song", "Artist", "Album", "17",
+                10000, 1000, 1, 300, true).sameAs(before, 1000));
+    }
+
+    public void testPausedClockDoesNotAdvance() {
+        PlayerState.Snapshot paused = snapshot("Song", 10000, 1000, false);
+        assertTrue(snapshot("Song", 10000, 60000, false).sameAs(paused, 60000));
+    }
+
+    public void testFirstStatusAfterRestoreIsKnown() {
+        PlayerState state = new PlayerState("00:04:20:05:09:36");
+        assertTrue(state.isUnknown());
+        PlayerState.Snapshot saved = snapshot("Song", 10000, 1000, true);
+        state.restore(saved);
+        assertSame(saved, state.get());
+        assertTrue(state.isUnknown());
+        assertTrue(state.isPlaceholder(saved));
+
+        // The server agrees with what was saved; it still has to be published.
+        PlayerState.Snapshot first = snapshot("Song", 10000, 1000, true);
+        assertTrue(first.sameAs(saved, 1000));
+        assertTrue(state.publish(saved, first));
+        assertFalse(state.isUnknown());
+        assertFalse(state.isPlaceholder(first));
+    }
+
+    public void testRestoreAfterFirstStatusIsIgnored() {
+        PlayerState state = new PlayerState("00:04:20:05:09:36");
+        PlayerState.Snapshot first = snapshot("Song", 10000, 1000, true);
+        assertTrue(state.publish(PlayerState.Snapshot.EMPTY, first));
+        PlayerState.Snapshot saved = snapshot("Old song", 0, 0, false);
+        state.restore(saved);
+        assertSame(first, state.get());
+        assertFalse(state.isUnknown());
+        assertFalse(state.isPlaceholder(saved));
+    }
+}
@@ -0,0 +1,140 @@
+package com.danga.squeezer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ServerDiscoveryTest extends TestCase {
+    // Answers every discovery probe on localhost with name and CLI port,
+    // as SqueezeCenter does.
+    private static class FakeServer extends Thread {
+        final DatagramSocket socket;
+        volatile String name;
+        volatile int cliPort;
+        volatile boolean answering = true;
+        volatile int probes = 0;
+
+        FakeServer(String name, int cliPort) throws IOException {
+            this.socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            this.name = name;
+            this.cliPort = cliPort;
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[1500];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    if (packet.getLength() < 1 || buffer[0] != 'e') continue;
+                    probes++;
+                    if (!answering) continue;
+                    byte[] reply = reply(name, String.valueOf(cliPort));
+                    socket.send(new DatagramPacket(reply, reply.length,
+                            packet.getAddress(), packet.getPort()));
+                }
+            } catch (Exception e) {
+                // Closed.
+            }
+        }
+    }
+
+    private FakeServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new FakeServer("Kitchen", 9090);
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.socket.close();
+    }
+
+    private static byte[] reply(String name, String cliPort) throws Exception {
+        byte[] nameBytes = name.getBytes("UTF-8");
+        byte[] portBytes = cliPort.getBytes("UTF-8");
+        byte[] reply = new byte[1 + 5 + nameBytes.length + 5 + portBytes.length];
+        int pos = 0;
+        reply[pos++] = 'E';
+        pos = putTag(reply, pos, "NAME", nameBytes);
+        putTag(reply, pos, "CLIP", portBytes);
+        return reply;
+    }
+
+    private static int putTag(byte[] reply, int pos, String tag, byte[] value) {
+        for (int i = 0; i < 4; i++) reply[pos++] = (byte) tag.charAt(i);
+        reply[pos++] = (byte) value.length;
+        System.arraycopy(value, 0, reply, pos, value.length);
+        return pos + value.length;
+    }
+
+    private List<InetAddress> localhost() throws Exception {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        addresses.add(InetAddress.getByName("127.0.0.1"));
+        return addresses;
+    }
+
+    public void testParseResponse() throws Exception {
+        byte[] data = reply("Living room", "9191");
+        ServerDiscovery.Server parsed = ServerDiscovery.parseResponse(
+                data, data.length, InetAddress.getByName("10.0.0.5"), 0);
+        assertEquals("10.0.0.5:9191", parsed.hostPort);
+        assertEquals("Living room", parsed.name);
+    }
+
+    public void testParseResponseDefaultsAndGarbage() throws Exception {
+        InetAddress from = InetAddress.getByName("10.0.0.5");
+        byte[] bare = { 'E' };
+        ServerDiscovery.Server parsed = ServerDiscovery.parseResponse(bare, 1, from, 0);
+        assertEquals("10.0.0.5:9090", parsed.hostPort);
+        assertEquals("10.0.0.5", parsed.name);
+
+        byte[] probe = { 'e', 'N', 'A', 'M', 'E', 0 };
+        assertNull(ServerDiscovery.parseResponse(probe, probe.length, from, 0));
+
+        // A tag claiming more bytes than there are is ignored.
+        byte[] truncated = { 'E', 'N', 'A', 'M', 'E', 20, 'x' };
+        parsed = ServerDiscovery.parseResponse(truncated, truncated.length, from, 0);
+        assertEquals("10.0.0.5", parsed.name);
+    }
+
+    public void testRefreshFindsResponder() throws Exception {
+        ServerDiscovery discovery = new ServerDiscovery(server.getPort());
+        assertFalse(discovery.isFresh());
+        List<ServerDiscovery.Server> servers = discovery.refresh(localhost());
+        assertEquals(1, servers.size());
+        assertEquals("127.0.0.1:9090", servers.get(0).hostPort);
+        assertEquals("Kitchen", servers.get(0).name);
+        assertEquals(3, server.probes);
+        assertTrue(discovery.isFresh());
+        assertEquals(1, discovery.getServers().size());
+    }
+
+    // The server moved to another CLI port: the forced refresh after a
+    // failed connect must not still list the old address.
+    public void testRefreshDropsServersThatStoppedAnswering() throws Exception {
+        ServerDiscovery discovery = new ServerDiscovery(server.getPort());
+        discovery.refresh(localhost());
+        server.cliPort = 9091;
+        List<ServerDiscovery.Server> servers = discovery.refresh(localhost());
+        assertEquals(1, servers.size());
+        assertEquals("127.0.0.1:9091", servers.get(0).hostPort);
+
+        server.answering = false;
+        assertEquals(0, discovery.refresh(localhost()).size());
+        assertEquals(0, discovery.getServers().size());
+    }
+}